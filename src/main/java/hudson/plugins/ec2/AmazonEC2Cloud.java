@@ -36,9 +36,13 @@ public class AmazonEC2Cloud extends EC2Cloud {
     public static boolean testMode;
     
     
-    @DataBoundConstructor
     public AmazonEC2Cloud(String accessId, String secretKey, String region, String privateKey, String instanceCapStr, List<SlaveTemplate> templates) {
-        super("ec2-"+region, accessId, secretKey, privateKey, instanceCapStr, templates);
+        this(accessId, secretKey, region, privateKey, instanceCapStr, templates, null, null, null);
+    }
+
+    @DataBoundConstructor
+    public AmazonEC2Cloud(String accessId, String secretKey, String region, String privateKey, String instanceCapStr, List<SlaveTemplate> templates, String jumpHost, String jumpUser, String labelCaps) {
+        super("ec2-"+region, accessId, secretKey, privateKey, instanceCapStr, templates, jumpHost, jumpUser, labelCaps);
         this.region = region;
     }
 
@@ -0,0 +1,242 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.plugins.ec2.ssh.EC2UnixLauncher;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateImageRequest;
+import com.amazonaws.services.ec2.model.DeregisterImageRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.trilead.ssh2.Connection;
+
+/**
+ * Bakes the {@linkplain SlaveTemplate#initScript init script} of templates that ask for it into AMIs,
+ * so that slaves don't spend their boot time running it.
+ *
+ * <p>
+ * Baked AMIs are keyed by the base AMI and the digest of the init script, so changing either of them makes
+ * {@link SlaveTemplate#getLaunchAmi()} fall back to the base AMI until we've baked a new one.
+ * To bake, we launch an instance of the base AMI, run the init script on it (which leaves the marker that
+ * {@link EC2UnixLauncher} checks, so slaves from the baked AMI skip the init script), create an image of it,
+ * and wait for the image to become available. Only then does the new AMI get recorded, in a single map update.
+ * The AMI it replaces is retired, and deregistered once no instance runs it anymore, so that slaves launched from it
+ * can still be told apart by {@link EC2Cloud#getTemplate(String)}.
+ *
+ * <p>
+ * The instances we bake on are tagged with a lease that's only active while we're baking on them, so that
+ * {@link OrphanedInstanceReaper} gets rid of those left behind by a restart.
+ */
+@Extension
+public class AmiBaker extends AsyncPeriodicWork {
+    public AmiBaker() {
+        super("EC2 AMI baker");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit2.MINUTES.toMillis(15);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        EC2Cloud cloud = EC2Cloud.get();
+        if (cloud==null)    return;
+
+        try {
+            deregisterRetired(cloud, listener.getLogger());
+        } catch (AmazonClientException e) {
+            e.printStackTrace(listener.error("Failed to deregister the retired AMIs"));
+        }
+
+        for (SlaveTemplate t : cloud.getTemplates()) {
+            if (!t.bakeInitScript || StringUtils.isBlank(t.initScript))
+                continue;
+            if (getBakedAmi(t.ami, t.initScript)!=null)
+                continue;   // up to date
+            t.parent = cloud;
+
+            try {
+                bake(cloud, t, listener);
+            } catch (AmazonClientException e) {
+                e.printStackTrace(listener.error("Failed to bake "+t.getDisplayName()));
+            }
+        }
+    }
+
+    private void bake(EC2Cloud cloud, SlaveTemplate t, TaskListener listener) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        String key = key(t.ami, t.initScript);
+        logger.println("Baking the init script of "+t.getDisplayName()+" ("+key+")");
+
+        String lease = cloud.getOwnerId()+':'+LEASE+'#'+System.currentTimeMillis();
+        BAKING.add(lease);
+        try {
+            bakeOn(t.provisionBaseImage(lease, listener), cloud, t, key, listener);
+        } finally {
+            BAKING.remove(lease);
+        }
+    }
+
+    private void bakeOn(EC2Slave builder, EC2Cloud cloud, SlaveTemplate t, String key, TaskListener listener) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        try {
+            Connection conn = EC2UnixLauncher.getConnection(builder, logger);
+            if (conn==null) {
+                listener.error("Failed to connect to "+builder.getInstanceId());
+                return;
+            }
+            try {
+                if (!EC2UnixLauncher.executeInitScript(conn, builder, t.initScript, logger)) {
+                    listener.error("The init script failed, not baking "+t.getDisplayName());
+                    return;
+                }
+            } finally {
+                conn.close();
+            }
+
+            AmazonEC2 ec2 = cloud.connect();
+            String name = "jenkins-"+t.ami+"-"+key.substring(key.indexOf('@')+1, key.indexOf('@')+9)+"-"+System.currentTimeMillis();
+            String imageId = ec2.createImage(new CreateImageRequest(builder.getInstanceId(), name)
+                    .withDescription("Init script of "+t.getDisplayName()+" baked by Jenkins")).getImageId();
+            logger.println("Creating "+imageId+" from "+builder.getInstanceId());
+
+            Image image = waitForImage(ec2, imageId, logger);
+            if (image==null || !"available".equals(image.getState())) {
+                listener.error("Image "+imageId+" didn't become available: "+(image!=null ? image.getState() : "gone"));
+                deregister(ec2, imageId, logger);
+                return;
+            }
+
+            // switch over, then retire what this replaces
+            Map<String,String> baked = PluginImpl.get().getBakedAmis();
+            Map<String,String> retired = PluginImpl.get().getRetiredAmis();
+            baked.put(key, imageId);
+            for (Iterator<Map.Entry<String,String>> itr = baked.entrySet().iterator(); itr.hasNext(); ) {
+                Map.Entry<String,String> e = itr.next();
+                if (e.getKey().startsWith(t.ami+'@') && !e.getKey().equals(key)) {
+                    itr.remove();
+                    retired.put(e.getValue(), t.ami);
+                }
+            }
+            PluginImpl.get().save();
+            logger.println(t.getDisplayName()+" now launches "+imageId);
+        } finally {
+            EC2Slave.terminate(cloud, builder.getInstanceId(), false);   // even if the template says to stop
+        }
+    }
+
+    /**
+     * Deregisters the retired AMIs that no instance runs anymore, stopped ones included, as they may be started again.
+     */
+    private void deregisterRetired(EC2Cloud cloud, PrintStream logger) throws AmazonClientException, IOException {
+        Map<String,String> retired = PluginImpl.get().getRetiredAmis();
+        if (retired.isEmpty())
+            return;
+
+        Set<String> inUse = new HashSet<String>();
+        for (Instance i : cloud.describeLiveInstances())
+            inUse.add(i.getImageId());
+        for (Instance i : cloud.describeSlaveInstances())
+            inUse.add(i.getImageId());
+
+        AmazonEC2 ec2 = cloud.connect();
+        boolean changed = false;
+        for (String imageId : new ArrayList<String>(retired.keySet())) {
+            if (inUse.contains(imageId))
+                continue;
+            deregister(ec2, imageId, logger);
+            retired.remove(imageId);
+            changed = true;
+        }
+        if (changed)
+            PluginImpl.get().save();
+    }
+
+    private Image waitForImage(AmazonEC2 ec2, String imageId, PrintStream logger) throws InterruptedException {
+        long timeout = System.currentTimeMillis()+TimeUnit2.HOURS.toMillis(1);
+        while (System.currentTimeMillis()<timeout) {
+            Thread.sleep(15*1000);
+            List<Image> images = ec2.describeImages(new DescribeImagesRequest().withImageIds(imageId)).getImages();
+            if (images.isEmpty())
+                return null;
+            Image image = images.get(0);
+            if (!"pending".equals(image.getState()))
+                return image;
+            logger.println("Waiting for "+imageId+" to become available");
+        }
+        return null;
+    }
+
+    private void deregister(AmazonEC2 ec2, String imageId, PrintStream logger) {
+        try {
+            ec2.deregisterImage(new DeregisterImageRequest(imageId));
+            logger.println("Deregistered "+imageId);
+        } catch (AmazonClientException e) {
+            logger.println("Failed to deregister "+imageId+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * Is the instance tagged with this lease being baked on right now?
+     */
+    /*package*/ static boolean isBaking(String lease) {
+        return BAKING.contains(lease);
+    }
+
+    /**
+     * Gets the base AMI of a baked AMI that's been replaced but may still run slaves.
+     *
+     * @return null if it's not a retired AMI.
+     */
+    public static String getRetiredBaseAmi(String imageId) {
+        PluginImpl p = PluginImpl.get();
+        return p!=null ? p.getRetiredAmis().get(imageId) : null;
+    }
+
+    /**
+     * Identifies the base AMI and the init script baked into it.
+     */
+    /*package*/ static String key(String ami, String initScript) {
+        return ami+'@'+Util.getDigestOf(initScript);
+    }
+
+    /**
+     * Gets the AMI baked from the given base AMI and init script.
+     *
+     * @return null if we haven't baked one yet.
+     */
+    public static String getBakedAmi(String ami, String initScript) {
+        PluginImpl p = PluginImpl.get();
+        return p!=null ? p.getBakedAmis().get(key(ami, Util.fixNull(initScript))) : null;
+    }
+
+    /**
+     * Build part of the {@linkplain OrphanedInstanceReaper#leaseOf leases} of the instances we bake on.
+     * It can't be the name of a project, as those can't contain '@'.
+     */
+    /*package*/ static final String LEASE = "@ami-baker";
+
+    /**
+     * Leases of the instances being baked on.
+     */
+    private static final Set<String> BAKING = Collections.synchronizedSet(new HashSet<String>());
+}
@@ -0,0 +1,161 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateSnapshotRequest;
+import com.amazonaws.services.ec2.model.DeleteSnapshotRequest;
+import com.amazonaws.services.ec2.model.DescribeSnapshotsRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.Snapshot;
+
+/**
+ * Keeps the {@linkplain SlaveTemplate#cacheSnapshotId cache snapshots} warm.
+ *
+ * <p>
+ * Every {@link #REFRESH_HOURS} hours, for each configured cache snapshot, we pick the longest running
+ * slave that's online and has a cache volume from it, flush its disks, and snapshot its cache volume.
+ * Once the snapshot completes, new slaves get their cache volume from it instead. The snapshot it replaces
+ * may still be in use by launches in flight, so it's only deleted at the following refresh.
+ * The snapshot in the configuration itself is never touched.
+ */
+@Extension
+public class CacheSnapshotRefresher extends AsyncPeriodicWork {
+    public CacheSnapshotRefresher() {
+        super("EC2 cache snapshot refresher");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit2.HOURS.toMillis(REFRESH_HOURS);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        EC2Cloud cloud = EC2Cloud.get();
+        if (cloud==null)    return;
+
+        Set<String> configured = new LinkedHashSet<String>();
+        for (SlaveTemplate t : cloud.getTemplates())
+            if (t.cacheSnapshotId!=null)
+                configured.add(t.cacheSnapshotId);
+
+        for (String snapshotId : configured) {
+            try {
+                refresh(cloud, snapshotId, listener);
+            } catch (AmazonClientException e) {
+                e.printStackTrace(listener.error("Failed to refresh the cache snapshot "+snapshotId));
+            }
+        }
+    }
+
+    private void refresh(EC2Cloud cloud, String snapshotId, TaskListener listener) throws IOException, InterruptedException {
+        EC2Slave source = pickSource(snapshotId);
+        if (source==null) {
+            listener.getLogger().println("No slave has been up long enough to refresh "+snapshotId+" from");
+            return;
+        }
+
+        String volumeId = null;
+        Instance inst = source.describeInstance();
+        for (InstanceBlockDeviceMapping m : inst.getBlockDeviceMappings())
+            if (DEVICE.equals(m.getDeviceName()) && m.getEbs()!=null)
+                volumeId = m.getEbs().getVolumeId();
+        if (volumeId==null) {
+            listener.getLogger().println(source.getInstanceId()+" has no cache volume");
+            return;
+        }
+
+        // get what's in the page cache onto the volume. not a consistent snapshot, but good enough for caches
+        if (source.createLauncher(listener).launch().cmds("sync").stdout(listener.getLogger()).join()!=0) {
+            listener.getLogger().println("Failed to flush the disks of "+source.getInstanceId());
+            return;
+        }
+
+        AmazonEC2 ec2 = cloud.connect();
+        listener.getLogger().println("Snapshotting the cache volume "+volumeId+" of "+source.getInstanceId());
+        Snapshot s = ec2.createSnapshot(new CreateSnapshotRequest(volumeId, "Jenkins cache of "+snapshotId+" from "+source.getInstanceId())).getSnapshot();
+
+        long timeout = System.currentTimeMillis()+TimeUnit2.HOURS.toMillis(2);
+        while (!"completed".equals(s.getState())) {
+            if ("error".equals(s.getState()) || System.currentTimeMillis()>timeout) {
+                listener.error("Snapshot "+s.getSnapshotId()+" didn't complete: "+s.getState());
+                ec2.deleteSnapshot(new DeleteSnapshotRequest(s.getSnapshotId()));
+                return;
+            }
+            Thread.sleep(30*1000);
+            s = ec2.describeSnapshots(new DescribeSnapshotsRequest().withSnapshotIds(s.getSnapshotId())).getSnapshots().get(0);
+        }
+
+        Map<String,String> latest = PluginImpl.get().getCacheSnapshots();
+        Map<String,String> retired = PluginImpl.get().getRetiredCacheSnapshots();
+        String previous = latest.put(snapshotId, s.getSnapshotId());
+        String older = null;
+        if (previous!=null && !previous.equals(snapshotId))
+            older = retired.put(snapshotId, previous);  // the one it replaces stays until the next refresh
+        PluginImpl.get().save();
+        listener.getLogger().println("New slaves get their cache from "+s.getSnapshotId());
+
+        if (older!=null) {
+            try {
+                ec2.deleteSnapshot(new DeleteSnapshotRequest(older));
+            } catch (AmazonClientException e) {
+                listener.getLogger().println("Failed to delete the old cache snapshot "+older+": "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Picks the online slave with a cache volume from the given snapshot that has been connected the longest.
+     */
+    private EC2Slave pickSource(String snapshotId) {
+        EC2Slave best = null;
+        long bestTime = System.currentTimeMillis()-TimeUnit2.MINUTES.toMillis(MIN_UPTIME_MINUTES);
+        for (Node n : Hudson.getInstance().getNodes()) {
+            if (!(n instanceof EC2Slave))   continue;
+            EC2Slave s = (EC2Slave) n;
+            if (!snapshotId.equals(s.cacheSnapshotId))   continue;
+            Computer c = s.toComputer();
+            if (c==null || !c.isOnline())   continue;
+            if (c.getConnectTime()<bestTime) {
+                best = s;
+                bestTime = c.getConnectTime();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The snapshot that new slaves should get their cache volume from.
+     */
+    public static String getLatestSnapshot(String configured) {
+        PluginImpl p = PluginImpl.get();
+        String s = p!=null ? p.getCacheSnapshots().get(configured) : null;
+        return s!=null ? s : configured;
+    }
+
+    /**
+     * Device the cache volume is attached as.
+     */
+    public static final String DEVICE = "/dev/sdm";
+
+    public static int REFRESH_HOURS = Integer.getInteger(CacheSnapshotRefresher.class.getName()+".refreshHours", 24);
+
+    /**
+     * Slaves that have been up for less than this don't have much in their caches yet.
+     */
+    public static int MIN_UPTIME_MINUTES = Integer.getInteger(CacheSnapshotRefresher.class.getName()+".minUptimeMinutes", 60);
+}
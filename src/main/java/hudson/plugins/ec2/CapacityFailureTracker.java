@@ -0,0 +1,85 @@
+package hudson.plugins.ec2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Remembers which instance types recently failed to launch in which availability zone for the lack of capacity,
+ * so that we can steer launches elsewhere until the capacity comes back.
+ *
+ * <p>
+ * Every failure adds one to the penalty of the (type, zone) pair, and the penalty halves every {@link #HALF_LIFE} ms,
+ * so a single failure makes the pair {@linkplain #isConstrained(String, String) constrained} for roughly one half-life,
+ * and repeated failures make it stay that way longer.
+ */
+public final class CapacityFailureTracker {
+    private final Map<String,Entry> entries = new HashMap<String,Entry>();
+
+    private static final class Entry {
+        double penalty;
+        long timestamp;
+
+        double decay(long now) {
+            penalty *= Math.pow(0.5, (double)(now-timestamp)/HALF_LIFE);
+            timestamp = now;
+            return penalty;
+        }
+    }
+
+    /**
+     * @param zone
+     *      Availability zone, or null/empty if the launch wasn't pinned to a zone.
+     */
+    public synchronized void recordFailure(String type, String zone) {
+        String key = key(type, zone);
+        Entry e = entries.get(key);
+        if (e==null)
+            entries.put(key, e = new Entry());
+        e.decay(System.currentTimeMillis());
+        e.penalty += 1;
+    }
+
+    public synchronized double getPenalty(String type, String zone) {
+        Entry e = entries.get(key(type, zone));
+        if (e==null)    return 0;
+        double p = e.decay(System.currentTimeMillis());
+        if (p<0.01)
+            entries.remove(key(type, zone));
+        return p;
+    }
+
+    /**
+     * True if launching this instance type in this zone is likely to fail right now.
+     */
+    public boolean isConstrained(String type, String zone) {
+        return getPenalty(type, zone)>=0.5;
+    }
+
+    /**
+     * Forgets all the failures, as if none had happened.
+     */
+    /*package*/ synchronized void clear() {
+        entries.clear();
+    }
+
+    private static String key(String type, String zone) {
+        return type+'@'+(zone==null ? "" : zone);
+    }
+
+    /**
+     * Does this error mean EC2 doesn't have the capacity for the requested instance type right now?
+     */
+    public static boolean isCapacityError(AmazonServiceException e) {
+        return "InsufficientInstanceCapacity".equals(e.getErrorCode());
+    }
+
+    public static CapacityFailureTracker get() {
+        return INSTANCE;
+    }
+
+    private static final CapacityFailureTracker INSTANCE = new CapacityFailureTracker();
+
+    public static long HALF_LIFE = Long.getLong(CapacityFailureTracker.class.getName()+".halfLife", 10*60*1000L);
+}
@@ -0,0 +1,255 @@
+package hudson.plugins.ec2;
+
+import hudson.model.labels.LabelAtom;
+import hudson.util.TimeUnit2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.Instance;
+
+/**
+ * Keeps count of the instances that are up or being launched, against the {@linkplain EC2Cloud#instanceCap cloud},
+ * {@linkplain SlaveTemplate#getInstanceCap() template} and {@linkplain EC2Cloud#getLabelCap(String) label} quotas.
+ *
+ * <p>
+ * Every launch first {@linkplain #reserve(EC2Cloud, SlaveTemplate, int) reserves} its instances here, which either
+ * fits all the quotas or fails, atomically, so concurrent provisioning rounds and builds can't launch past a cap
+ * between checking and launching. Once the instances are up, the reservation turns into instances that count
+ * until they're {@linkplain #release(String) terminated}; if the launch fails, it's released.
+ *
+ * <p>
+ * Nothing here talks to EC2 while holding the lock. To also count instances that were started outside Jenkins,
+ * or before it started, the cloud quota includes the instances EC2 reported at the last {@link #refresh(EC2Cloud)}
+ * that we don't know by ID.
+ */
+public final class CapacityLedger {
+    /**
+     * Instances and reservations counted against each quota, keyed by the quota key.
+     */
+    private final Map<String,Integer> used = new HashMap<String,Integer>();
+    /**
+     * Instances we don't know by ID, per cloud quota key.
+     */
+    private final Map<String,Integer> untracked = new HashMap<String,Integer>();
+    /**
+     * Quota keys that each instance we know counts against, keyed by instance ID.
+     */
+    private final Map<String,List<String>> instances = new HashMap<String,List<String>>();
+    /**
+     * When we started counting each instance we know, keyed by instance ID.
+     */
+    private final Map<String,Long> trackedSince = new HashMap<String,Long>();
+    private final Map<String,Long> refreshed = new HashMap<String,Long>();
+
+    /**
+     * Instances that have been reserved but not launched yet.
+     */
+    public final class Reservation {
+        private final List<String> keys;
+        private int count;
+
+        private Reservation(List<String> keys, int count) {
+            this.keys = keys;
+            this.count = count;
+        }
+
+        public int getCount() {
+            synchronized (CapacityLedger.this) {
+                return count;
+            }
+        }
+
+        /**
+         * Turns the reservation into launched instances, which count until they're {@linkplain CapacityLedger#release(String) released}.
+         * Any part of the reservation that didn't get launched is released.
+         */
+        public void commit(Collection<String> instanceIds) {
+            synchronized (CapacityLedger.this) {
+                for (String id : instanceIds) {
+                    if (count==0)
+                        add(keys, 1);   // more than reserved, but they're running anyway
+                    else
+                        count--;
+                    instances.put(id, keys);
+                    trackedSince.put(id, System.currentTimeMillis());
+                }
+                release();
+            }
+        }
+
+        /**
+         * Gives back whatever hasn't been launched.
+         */
+        public void release() {
+            synchronized (CapacityLedger.this) {
+                add(keys, -count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Reserves instances of the given template, if that stays within all the quotas.
+     *
+     * @return null if one of the quotas would be exceeded.
+     */
+    public Reservation reserve(EC2Cloud cloud, SlaveTemplate t, int count) {
+        return reserve(quotas(cloud, t), count);
+    }
+
+    /*package*/ synchronized Reservation reserve(Map<String,Integer> quotas, int count) {
+        for (Map.Entry<String,Integer> q : quotas.entrySet()) {
+            int n = get(used, q.getKey())+get(untracked, q.getKey());
+            if (n+count > q.getValue()) {
+                LOGGER.info("Can't launch "+count+" more instances: "+n+" of "+q.getValue()+" allowed for "+q.getKey()+" are taken");
+                return null;
+            }
+        }
+        List<String> keys = new ArrayList<String>(quotas.keySet());
+        add(keys, count);
+        return new Reservation(keys, count);
+    }
+
+    /**
+     * Counts an instance that's already running, like one found after a restart.
+     */
+    public void track(String instanceId, EC2Cloud cloud, SlaveTemplate t) {
+        track(instanceId, quotas(cloud, t));
+    }
+
+    /*package*/ synchronized void track(String instanceId, Map<String,Integer> quotas) {
+        if (instances.containsKey(instanceId))
+            return;
+        List<String> keys = new ArrayList<String>(quotas.keySet());
+        add(keys, 1);
+        instances.put(instanceId, keys);
+        trackedSince.put(instanceId, System.currentTimeMillis());
+    }
+
+    /**
+     * Stops counting an instance that's been terminated or stopped.
+     */
+    public synchronized void release(String instanceId) {
+        List<String> keys = instances.remove(instanceId);
+        trackedSince.remove(instanceId);
+        if (keys!=null)
+            add(keys, -1);
+    }
+
+    /**
+     * Counts the instances of the cloud that we don't know by ID, unless that's been done recently.
+     * This talks to EC2, so don't call it in a hurry.
+     */
+    public void refresh(EC2Cloud cloud) {
+        String key = cloudKey(cloud);
+        synchronized (this) {
+            Long last = refreshed.get(key);
+            if (last!=null && System.currentTimeMillis()-last < TimeUnit2.SECONDS.toMillis(REFRESH_SECONDS))
+                return;
+            refreshed.put(key, System.currentTimeMillis());
+        }
+
+        Set<String> live = new HashSet<String>();
+        try {
+            for (Instance i : cloud.describeLiveInstances())
+                live.add(i.getInstanceId());
+        } catch (AmazonClientException e) {
+            LOGGER.log(Level.WARNING, "Failed to count the live instances of "+cloud.name, e);
+            return;
+        }
+        setUntracked(key, live, System.currentTimeMillis());
+    }
+
+    /**
+     * Counts the live instances of the cloud that we don't know by ID, and stops counting the ones we know
+     * but that are gone, like those terminated from the console, reclaimed spot instances, or launches that
+     * failed after the instances were up. Instances we started counting since the last refresh are left alone,
+     * as EC2 may not have reported them yet.
+     */
+    /*package*/ synchronized void setUntracked(String cloudKey, Set<String> live, long now) {
+        long cutoff = now-TimeUnit2.SECONDS.toMillis(REFRESH_SECONDS);
+        for (String id : new ArrayList<String>(instances.keySet())) {
+            if (live.contains(id) || !instances.get(id).contains(cloudKey) || trackedSince.get(id)>cutoff)
+                continue;
+            LOGGER.info("Instance "+id+" is gone, no longer counting it");
+            release(id);
+        }
+
+        int n = 0;
+        for (String id : live)
+            if (!instances.containsKey(id))
+                n++;
+        untracked.put(cloudKey, n);
+    }
+
+    /**
+     * How many more instances the cloud cap allows, as far as we know without asking EC2.
+     */
+    public int getHeadroom(EC2Cloud cloud) {
+        if (cloud.instanceCap==Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+        return Math.max(0, cloud.instanceCap-count(cloudKey(cloud)));
+    }
+
+    /**
+     * How many instances count against the quota, including the ones being launched.
+     */
+    /*package*/ synchronized int count(String key) {
+        return get(used, key)+get(untracked, key);
+    }
+
+    /**
+     * The quotas that instances of the template count against, keyed by the quota key.
+     */
+    /*package*/ static Map<String,Integer> quotas(EC2Cloud cloud, SlaveTemplate t) {
+        Map<String,Integer> r = new LinkedHashMap<String,Integer>();
+        r.put(cloudKey(cloud), cloud.instanceCap);
+        r.put("template:"+cloud.name+'/'+t.ami+'/'+t.description, t.getInstanceCap());
+        for (Object o : t.getLabelSet()) {
+            LabelAtom a = (LabelAtom) o;
+            Integer cap = cloud.getLabelCap(a.getName());
+            r.put("label:"+cloud.name+'/'+a.getName(), cap!=null ? cap : Integer.MAX_VALUE);
+        }
+        return r;
+    }
+
+    private static String cloudKey(EC2Cloud cloud) {
+        return "cloud:"+cloud.name;
+    }
+
+    private void add(List<String> keys, int delta) {
+        for (String k : keys) {
+            int n = get(used, k)+delta;
+            if (n<=0)   used.remove(k);
+            else        used.put(k, n);
+        }
+    }
+
+    private static int get(Map<String,Integer> map, String key) {
+        Integer n = map.get(key);
+        return n!=null ? n : 0;
+    }
+
+    public static CapacityLedger get() {
+        return INSTANCE;
+    }
+
+    private static final CapacityLedger INSTANCE = new CapacityLedger();
+
+    /**
+     * How often we count the instances that we don't know by ID.
+     */
+    public static int REFRESH_SECONDS = Integer.getInteger(CapacityLedger.class.getName()+".refreshSeconds", 60);
+
+    private static final Logger LOGGER = Logger.getLogger(CapacityLedger.class.getName());
+}
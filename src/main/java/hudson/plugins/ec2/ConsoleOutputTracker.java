@@ -0,0 +1,287 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Computer;
+import hudson.triggers.Trigger;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.GetConsoleOutputRequest;
+
+/**
+ * Keeps track of the console output of instances.
+ *
+ * <p>
+ * While an instance boots, we poll its console output every {@link #POLL_SECONDS} seconds, a few instances
+ * at a time, append what's new since the last time, and look for {@link Milestone}s in it. That tells
+ * the launcher when sshd is about to come up, instead of it probing the SSH port blindly.
+ * Others, such as the computer page, get the output from here instead of fetching it every time.
+ */
+public final class ConsoleOutputTracker {
+    /**
+     * Boot milestones that show up in the console output.
+     */
+    public enum Milestone {
+        KERNEL("Linux version"),
+        SSH_HOST_KEYS("BEGIN SSH HOST KEY FINGERPRINTS|Generating public/private \\w+ key pair"),
+        CLOUD_INIT_DONE("Cloud-init v\\. \\S+ finished|cloud-init boot finished");
+
+        private final Pattern pattern;
+
+        Milestone(String regexp) {
+            this.pattern = Pattern.compile(regexp);
+        }
+    }
+
+    /**
+     * Console output of one instance.
+     */
+    public static final class Console {
+        private final StringBuilder text = new StringBuilder();
+        /**
+         * The output as EC2 last gave it to us, to tell what's new.
+         */
+        private String last = "";
+        private final EnumSet<Milestone> reached = EnumSet.noneOf(Milestone.class);
+        private volatile long fetched;
+        private volatile long watchedUntil;
+
+        public synchronized String getText() {
+            return text.toString();
+        }
+
+        public synchronized boolean has(Milestone m) {
+            return reached.contains(m);
+        }
+
+        public synchronized Set<Milestone> getMilestones() {
+            return EnumSet.copyOf(reached);
+        }
+
+        /**
+         * Records the output that EC2 just gave us.
+         */
+        /*package*/ synchronized void update(String output) {
+            String delta = delta(last, output);
+            last = output;
+            fetched = System.currentTimeMillis();
+            if (delta.length()==0)
+                return;
+
+            // a line may have been cut in two by the previous fetch
+            int lineStart = text.lastIndexOf("\n")+1;
+            String scan = text.substring(lineStart)+delta;
+            for (Milestone m : Milestone.values())
+                if (!reached.contains(m) && m.pattern.matcher(scan).find())
+                    reached.add(m);
+
+            text.append(delta);
+            if (text.length()>MAX_CHARS)
+                text.delete(0, text.length()-MAX_CHARS);
+            notifyAll();
+        }
+
+        private boolean isFresh(long maxAge) {
+            return fetched!=0 && System.currentTimeMillis()-fetched<maxAge;
+        }
+
+        private boolean isSshReady() {
+            return has(Milestone.SSH_HOST_KEYS) || has(Milestone.CLOUD_INIT_DONE);
+        }
+    }
+
+    private final Map<String,Console> consoles = new ConcurrentHashMap<String,Console>();
+    private boolean scheduled;
+
+    public Console get(String instanceId) {
+        Console c = consoles.get(instanceId);
+        if (c==null) {
+            synchronized (consoles) {
+                c = consoles.get(instanceId);
+                if (c==null)
+                    consoles.put(instanceId, c = new Console());
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Forgets about an instance that's gone.
+     */
+    public void forget(String instanceId) {
+        consoles.remove(instanceId);
+    }
+
+    /**
+     * Gets the console output, fetching it from EC2 unless we have one that's recent enough.
+     *
+     * @param maxAge
+     *      How old, in milliseconds, the output we have may be.
+     */
+    public String getOutput(String instanceId, long maxAge) throws AmazonClientException {
+        Console c = get(instanceId);
+        if (!c.isFresh(maxAge))
+            fetch(instanceId, c);
+        return c.getText();
+    }
+
+    /**
+     * Polls the console output of a booting instance for the next {@link #WATCH_MINUTES} minutes,
+     * or until it's booted.
+     */
+    public void watch(String instanceId) {
+        get(instanceId).watchedUntil = System.currentTimeMillis()+TimeUnit2.MINUTES.toMillis(WATCH_MINUTES);
+        schedule();
+    }
+
+    /**
+     * Waits until the console output shows that the instance has generated its SSH host keys or finished booting.
+     *
+     * @return false if that didn't happen within the timeout.
+     */
+    public boolean awaitSshReady(String instanceId, long timeout, PrintStream logger) throws InterruptedException {
+        watch(instanceId);
+        Console c = get(instanceId);
+        long deadline = System.currentTimeMillis()+timeout;
+        Set<Milestone> logged = EnumSet.noneOf(Milestone.class);
+        synchronized (c) {
+            while (true) {
+                for (Milestone m : c.reached)
+                    if (logged.add(m))
+                        logger.println("Console output of "+instanceId+" shows "+m);
+                if (c.isSshReady())
+                    return true;
+                long remaining = deadline-System.currentTimeMillis();
+                if (remaining<=0)
+                    return false;
+                c.wait(remaining);
+            }
+        }
+    }
+
+    private synchronized void schedule() {
+        if (scheduled || Trigger.timer==null)
+            return;
+        scheduled = true;
+        Trigger.timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (ConsoleOutputTracker.this) {
+                    scheduled = false;
+                }
+                poll();
+            }
+        }, TimeUnit2.SECONDS.toMillis(POLL_SECONDS));
+    }
+
+    /**
+     * Fetches the console output of the instances that are being watched, up to {@link #BATCH_SIZE} at a time,
+     * the ones we haven't heard from the longest first.
+     */
+    private void poll() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String,Console>> due = new ArrayList<Map.Entry<String,Console>>();
+        for (Map.Entry<String,Console> e : consoles.entrySet()) {
+            Console c = e.getValue();
+            if (c.watchedUntil>now && !c.has(Milestone.CLOUD_INIT_DONE))
+                due.add(e);
+        }
+        if (due.isEmpty())
+            return;
+
+        Collections.sort(due, new Comparator<Map.Entry<String,Console>>() {
+            public int compare(Map.Entry<String,Console> a, Map.Entry<String,Console> b) {
+                long x = a.getValue().fetched, y = b.getValue().fetched;
+                return x<y ? -1 : x>y ? 1 : 0;
+            }
+        });
+        for (final Map.Entry<String,Console> e : due.subList(0, Math.min(BATCH_SIZE, due.size()))) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        fetch(e.getKey(), e.getValue());
+                    } catch (AmazonClientException x) {
+                        LOGGER.log(Level.FINE, "Failed to get the console output of "+e.getKey(), x);
+                    }
+                }
+            });
+        }
+        schedule();
+    }
+
+    private void fetch(String instanceId, Console c) throws AmazonClientException {
+        String output = EC2Cloud.get().connect().getConsoleOutput(new GetConsoleOutputRequest(instanceId)).getOutput();
+        try {
+            c.update(decode(output));
+        } catch (IOException e) {
+            throw new AmazonClientException("Failed to decode the console output of "+instanceId, e);
+        }
+    }
+
+    /**
+     * Figures out what's new in the console output. EC2 only keeps the last 64KB of it,
+     * so the old output may have been cut at the front.
+     */
+    /*package*/ static String delta(String previous, String current) {
+        if (current.startsWith(previous))
+            return current.substring(previous.length());
+
+        // find where the end of what we've seen is in the new output
+        String tail = previous.substring(Math.max(0, previous.length()-OVERLAP));
+        int idx = tail.length()>0 ? current.lastIndexOf(tail) : -1;
+        return idx>=0 ? current.substring(idx+tail.length()) : current;
+    }
+
+    /**
+     * EC2 hands out the console output base64 encoded.
+     */
+    public static String decode(String output) throws UnsupportedEncodingException {
+        if (output==null)
+            return "";
+        byte[] bytes = output.getBytes("US-ASCII");
+        if (!Base64.isArrayByteBase64(bytes))
+            return output;  // already plain text, as from some EC2 clones
+        return new String(Base64.decodeBase64(bytes), "UTF-8");
+    }
+
+    public static ConsoleOutputTracker get() {
+        return INSTANCE;
+    }
+
+    private static final ConsoleOutputTracker INSTANCE = new ConsoleOutputTracker();
+
+    /**
+     * How much of the output we keep per instance, the same as EC2 does.
+     */
+    private static final int MAX_CHARS = 64*1024;
+
+    private static final int OVERLAP = 256;
+
+    public static int POLL_SECONDS = Integer.getInteger(ConsoleOutputTracker.class.getName()+".pollSeconds", 10);
+
+    public static int WATCH_MINUTES = Integer.getInteger(ConsoleOutputTracker.class.getName()+".watchMinutes", 15);
+
+    /**
+     * How many instances we fetch the console output of in one go.
+     */
+    public static int BATCH_SIZE = Integer.getInteger(ConsoleOutputTracker.class.getName()+".batchSize", 8);
+
+    private static final Logger LOGGER = Logger.getLogger(ConsoleOutputTracker.class.getName());
+}
@@ -0,0 +1,83 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+
+/**
+ * Parses {@link SlaveTemplate#deviceMappings}, which uses the syntax of the <tt>-b</tt> option of
+ * <tt>ec2-run-instances</tt>. Mappings are separated by whitespace or commas, and each one is one of
+ * <dl>
+ * <dt><tt>/dev/sdb=ephemeral0</tt>
+ * <dd>maps an instance store volume.
+ * <dt><tt>/dev/sdf=[snapshot-id]:[size]:[delete-on-termination]:[type]:[iops]</tt>
+ * <dd>maps an EBS volume, such as <tt>/dev/sdf=:100:true:io1:1000</tt> or <tt>/dev/sda1=:30</tt>.
+ *     Trailing fields can be omitted. Volumes are deleted on termination unless that says <tt>false</tt>.
+ * <dt><tt>/dev/sdc=none</tt>
+ * <dd>suppresses a mapping that the AMI has.
+ * </dl>
+ */
+public final class DeviceMappingParser {
+    private DeviceMappingParser() {}
+
+    /**
+     * @throws IllegalArgumentException
+     *      if the string is malformed.
+     */
+    public static List<BlockDeviceMapping> parse(String mappings) {
+        if (StringUtils.isBlank(mappings))
+            return Collections.emptyList();
+
+        List<BlockDeviceMapping> r = new ArrayList<BlockDeviceMapping>();
+        for (String token : mappings.trim().split("[\\s,]+")) {
+            int idx = token.indexOf('=');
+            if (idx<=0 || idx==token.length()-1)
+                throw new IllegalArgumentException("Expected device=mapping but got "+token);
+
+            BlockDeviceMapping m = new BlockDeviceMapping().withDeviceName(token.substring(0,idx));
+            String spec = token.substring(idx+1);
+            if (spec.startsWith("ephemeral")) {
+                m.setVirtualName(spec);
+            } else if (spec.equals("none")) {
+                m.setNoDevice("");
+            } else {
+                m.setEbs(parseEbs(token, spec));
+            }
+            r.add(m);
+        }
+        return r;
+    }
+
+    private static EbsBlockDevice parseEbs(String token, String spec) {
+        String[] fields = spec.split(":", -1);
+        if (fields.length>5)
+            throw new IllegalArgumentException("Too many fields in "+token);
+
+        EbsBlockDevice ebs = new EbsBlockDevice().withDeleteOnTermination(true);
+        try {
+            if (fields.length>0 && fields[0].length()>0)
+                ebs.setSnapshotId(fields[0]);
+            if (fields.length>1 && fields[1].length()>0)
+                ebs.setVolumeSize(Integer.parseInt(fields[1]));
+            if (fields.length>2 && fields[2].length()>0)
+                ebs.setDeleteOnTermination(Boolean.valueOf(fields[2]));
+            if (fields.length>3 && fields[3].length()>0)
+                ebs.setVolumeType(fields[3]);
+            if (fields.length>4 && fields[4].length()>0)
+                ebs.setIops(Integer.parseInt(fields[4]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed number in "+token);
+        }
+
+        if (ebs.getSnapshotId()==null && ebs.getVolumeSize()==null)
+            throw new IllegalArgumentException("A new EBS volume needs a size: "+token);
+        if (ebs.getIops()!=null && !"io1".equals(ebs.getVolumeType()))
+            throw new IllegalArgumentException("IOPS can only be given for io1 volumes: "+token);
+        return ebs;
+    }
+}
@@ -0,0 +1,53 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.UnprotectedRootAction;
+import hudson.slaves.SlaveComputer;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Where instances launched by {@link EC2InboundLauncher} trade the token they got in their user data
+ * for the JNLP secret of their node.
+ *
+ * <p>
+ * This has to be reachable without logging in, as the instance has no other credentials.
+ * The token is only good for the nodes of the launch it was generated for.
+ */
+@Extension
+public class EC2BootstrapAction implements UnprotectedRootAction {
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "ec2-bootstrap";
+    }
+
+    public void doSecret(StaplerResponse rsp, @QueryParameter String instance, @QueryParameter String token) throws IOException {
+        Node n = instance!=null ? Hudson.getInstance().getNode(instance) : null;
+        if (!(n instanceof EC2Slave) || !((EC2Slave)n).isBootstrapToken(token)) {
+            rsp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        Computer c = n.toComputer();
+        if (!(c instanceof SlaveComputer)) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.getWriter().print(((SlaveComputer)c).getJnlpMac());
+    }
+}
@@ -1,5 +1,6 @@
 package hudson.plugins.ec2;
 
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
@@ -21,7 +22,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,6 +41,9 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.CreateKeyPairRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.InstanceType;
@@ -58,6 +64,18 @@ public abstract class EC2Cloud extends Cloud {
 
 	public static final String DEFAULT_EC2_HOST = "us-east-1";
 	public static final String EC2_URL_HOST = "ec2.amazonaws.com";
+
+    /**
+     * Name of the tag put on every instance that is launched to become a Jenkins node.
+     * The value is the {@link #getOwnerId() owner ID} of the cloud that launched it.
+     */
+    public static final String SLAVE_TAG = "jenkins-ec2-slave";
+
+    /**
+     * Name of the tag put on every instance that {@link StartEc2Builder} launches.
+     * The value identifies the cloud and the build that holds the instance, see {@link OrphanedInstanceReaper#leaseOf}.
+     */
+    public static final String BUILD_TAG = "jenkins-ec2-build";
 	
     private final String accessId;
     private final Secret secretKey;
@@ -67,15 +85,36 @@ public abstract class EC2Cloud extends Cloud {
      * Upper bound on how many instances we may provision.
      */
     public final int instanceCap;
+    /**
+     * SSH host ("host" or "host:port") inside the VPC that connections to slaves get tunneled through,
+     * for when Jenkins can't reach the slaves directly. Null to connect directly.
+     */
+    public final String jumpHost;
+    /**
+     * User to log into {@link #jumpHost} as, with the EC2 key pair.
+     */
+    public final String jumpUser;
+    /**
+     * Upper bounds on how many instances may carry a label, like "<tt>gpu=2 linux=10</tt>". Null for none.
+     */
+    public final String labelCaps;
     private final List<SlaveTemplate> templates;
     private transient KeyPair usableKeyPair;
+    private transient /*almost final*/ Map<String,Integer> labelCapMap;
 
     private transient AmazonEC2 connection;
     
 	private static AWSCredentials awsCredentials;
     
     protected EC2Cloud(String id, String accessId, String secretKey, String privateKey, String instanceCapStr, List<SlaveTemplate> templates) {
+        this(id, accessId, secretKey, privateKey, instanceCapStr, templates, null, null, null);
+    }
+
+    protected EC2Cloud(String id, String accessId, String secretKey, String privateKey, String instanceCapStr, List<SlaveTemplate> templates, String jumpHost, String jumpUser, String labelCaps) {
         super(id);
+        this.jumpHost = Util.fixEmptyAndTrim(jumpHost);
+        this.jumpUser = Util.fixEmptyAndTrim(jumpUser);
+        this.labelCaps = Util.fixEmptyAndTrim(labelCaps);
         this.accessId = accessId.trim();
         this.secretKey = Secret.fromString(secretKey.trim());
         this.privateKey = new EC2PrivateKey(privateKey);
@@ -94,9 +133,36 @@ public abstract class EC2Cloud extends Cloud {
     protected Object readResolve() {
         for (SlaveTemplate t : templates)
             t.parent = this;
+        labelCapMap = parseLabelCaps(labelCaps);
         return this;
     }
 
+    /*package*/ static Map<String,Integer> parseLabelCaps(String labelCaps) {
+        Map<String,Integer> r = new HashMap<String,Integer>();
+        if (labelCaps==null)
+            return r;
+        for (String token : labelCaps.split("[\\s,]+")) {
+            int idx = token.lastIndexOf('=');
+            if (idx<=0)
+                continue;
+            try {
+                r.put(token.substring(0, idx), Integer.parseInt(token.substring(idx+1)));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Malformed label cap: "+token);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Gets the upper bound on how many instances may carry the given label.
+     *
+     * @return null if there's none.
+     */
+    public Integer getLabelCap(String label) {
+        return labelCapMap.get(label);
+    }
+
     public String getAccessId() {
         return accessId;
     }
@@ -116,13 +182,25 @@ public abstract class EC2Cloud extends Cloud {
             return String.valueOf(instanceCap);
     }
 
+    public String getJumpUser() {
+        return jumpUser!=null ? jumpUser : "ec2-user";
+    }
+
+    /**
+     * Tells the instances this cloud of this Jenkins launches apart from those of other masters in the same AWS account,
+     * which may well have a cloud of the same name.
+     */
+    public String getOwnerId() {
+        return name+'@'+Util.getDigestOf(Hudson.getInstance().getSecretKey()).substring(0,12);
+    }
+
     public List<SlaveTemplate> getTemplates() {
         return Collections.unmodifiableList(templates);
     }
 
     public SlaveTemplate getTemplate(String ami) {
         for (SlaveTemplate t : templates)
-            if(t.ami.equals(ami))
+            if(t.ami.equals(ami) || t.getLaunchAmi().equals(ami) || t.ami.equals(AmiBaker.getRetiredBaseAmi(ami)))
                 return t;
         return null;
     }
@@ -164,22 +242,96 @@ public abstract class EC2Cloud extends Cloud {
         return n;
     }
 
+    /**
+     * Describes all the pending and running instances, which are what {@link #instanceCap} is about,
+     * in a single filtered call.
+     */
+    public List<Instance> describeLiveInstances() throws AmazonClientException {
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                new Filter("instance-state-name").withValues("pending", "running"));
+        return toInstances(connect().describeInstances(request));
+    }
+
+    /**
+     * Describes all the instances that this cloud has launched as Jenkins nodes and that are not gone yet.
+     *
+     * <p>
+     * This is a single filtered call no matter how many nodes there are, so prefer this
+     * over describing instances one by one.
+     */
+    public List<Instance> describeSlaveInstances() throws AmazonClientException {
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                new Filter("tag:" + SLAVE_TAG).withValues(getOwnerId()),
+                new Filter("instance-state-name").withValues("pending", "running", "stopping", "stopped"));
+        return toInstances(connect().describeInstances(request));
+    }
+
+    /**
+     * Describes all the live instances launched by this plugin, be it as nodes or from builds,
+     * in a single filtered call.
+     */
+    public List<Instance> describeOwnedInstances() throws AmazonClientException {
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                new Filter("tag-key").withValues(SLAVE_TAG, BUILD_TAG),
+                new Filter("instance-state-name").withValues("pending", "running"));
+        return toInstances(connect().describeInstances(request));
+    }
+
+    /**
+     * Describes the given instances in a single call.
+     *
+     * <p>
+     * Unlike {@link DescribeInstancesRequest#setInstanceIds(Collection)}, this uses a filter,
+     * so IDs of instances that no longer exist are simply missing from the result instead of failing the whole call.
+     */
+    public List<Instance> describeInstances(Collection<String> instanceIds) throws AmazonClientException {
+        if (instanceIds.isEmpty())
+            return Collections.emptyList();
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                new Filter("instance-id").withValues(instanceIds));
+        return toInstances(connect().describeInstances(request));
+    }
+
+    private static List<Instance> toInstances(DescribeInstancesResult result) {
+        List<Instance> r = new ArrayList<Instance>();
+        for (Reservation res : result.getReservations())
+            r.addAll(res.getInstances());
+        return r;
+    }
+
+    /**
+     * Picks the template an existing instance was most likely launched from.
+     * Falls back to the first template, which is what we used to always do.
+     */
+    public SlaveTemplate getTemplateFor(Instance inst) {
+        SlaveTemplate t = getTemplate(inst.getImageId());
+        if (t==null && !templates.isEmpty())
+            t = templates.get(0);
+        return t;
+    }
+
     /**
      * Debug command to attach to a running instance.
      */
-    public void doAttach(StaplerRequest req, StaplerResponse rsp, @QueryParameter String id) throws ServletException, IOException, AmazonClientException {
+    public void doAttach(StaplerRequest req, StaplerResponse rsp, @QueryParameter String id) throws ServletException, IOException, InterruptedException, AmazonClientException {
         checkPermission(PROVISION);
-        SlaveTemplate t = getTemplates().get(0);
+        List<Instance> instances = describeInstances(Collections.singletonList(id));
+        if (instances.isEmpty()) {
+            sendError("No such instance: "+id,req,rsp);
+            return;
+        }
+        Instance inst = instances.get(0);
+        SlaveTemplate t = getTemplateFor(inst);
 
         StringWriter sw = new StringWriter();
         StreamTaskListener listener = new StreamTaskListener(sw);
-        EC2Slave node = t.attach(id,listener);
-        Hudson.getInstance().addNode(node);
+        EC2Slave node = t.attach(inst,listener);
+        NodeRegistrar.get().add(node);
 
         rsp.sendRedirect2(req.getContextPath()+"/computer/"+node.getNodeName());
     }
 
-    public void doProvision(StaplerRequest req, StaplerResponse rsp, @QueryParameter String ami) throws ServletException, IOException {
+    public void doProvision(StaplerRequest req, StaplerResponse rsp, @QueryParameter String ami) throws ServletException, IOException, InterruptedException {
         checkPermission(PROVISION);
         if(ami==null) {
             sendError("The 'ami' query parameter is missing",req,rsp);
@@ -195,7 +347,7 @@ public abstract class EC2Cloud extends Cloud {
         StreamTaskListener listener = new StreamTaskListener(sw);
         try {
             EC2Slave node = t.provision(listener);
-            Hudson.getInstance().addNode(node);
+            NodeRegistrar.get().add(node);
 
             rsp.sendRedirect2(req.getContextPath()+"/computer/"+node.getNodeName());
         } catch (AmazonClientException e) {
@@ -205,44 +357,59 @@ public abstract class EC2Cloud extends Cloud {
     }
 
     @Override
-	public Collection<PlannedNode> provision(Label label, int excessWorkload) {
-        try {
-
-            final SlaveTemplate t = getTemplate(label);
-
-            List<PlannedNode> r = new ArrayList<PlannedNode>();
-            for( ; excessWorkload>0; excessWorkload-- ) {
-                if(countCurrentEC2Slaves()>=instanceCap) {
-                    LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
-                    break;      // maxed out
-                }
+	public Collection<PlannedNode> provision(final Label label, int excessWorkload) {
+        final SlaveTemplate t = getTemplate(label);
+        CapacityLedger ledger = CapacityLedger.get();
+        ledger.refresh(this);
+        // near the cap, the builds that have waited the longest get the instances, not the label asked about first
+        int allowed = ProvisioningScheduler.get().allot(this, label, t, excessWorkload);
+
+        List<PlannedNode> r = new ArrayList<PlannedNode>();
+        for (; excessWorkload>0 && allowed>0; allowed--) {
+            // a slave may carry more than one executor, depending on which instance type we end up with
+            int numExecutors = t.getExpectedNumExecutors();
+            excessWorkload -= numExecutors;
+
+            // reserve before launching, so that concurrent rounds can't both take the last instance
+            final CapacityLedger.Reservation reservation = ledger.reserve(this, t, 1);
+            if(reservation==null) {
+                LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
+                ProvisioningScheduler.get().fail(this, label);
+                break;      // maxed out
+            }
 
-                r.add(new PlannedNode(t.getDisplayName(),
-                        Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                            public Node call() throws Exception {
-                                // TODO: record the output somewhere
-                                EC2Slave s = t.provision(new StreamTaskListener(System.out));
-                                Hudson.getInstance().addNode(s);
-                                // EC2 instances may have a long init script. If we declare
-                                // the provisioning complete by returning without the connect
-                                // operation, NodeProvisioner may decide that it still wants
-                                // one more instance, because it sees that (1) all the slaves
-                                // are offline (because it's still being launched) and
-                                // (2) there's no capacity provisioned yet.
-                                //
-                                // deferring the completion of provisioning until the launch
-                                // goes successful prevents this problem.
-                                s.toComputer().connect(false).get();
-                                return s;
+            r.add(new PlannedNode(t.getDisplayName(),
+                    Computer.threadPoolForRemoting.submit(new Callable<Node>() {
+                        public Node call() throws Exception {
+                            // TODO: record the output somewhere
+                            EC2Slave s;
+                            try {
+                                s = t.provision(reservation, new StreamTaskListener(System.out));
+                            } catch (AmazonClientException e) {
+                                ProvisioningScheduler.get().fail(EC2Cloud.this, label);
+                                throw e;
+                            } catch (IOException e) {
+                                ProvisioningScheduler.get().fail(EC2Cloud.this, label);
+                                throw e;
                             }
-                        })
-                        ,t.getNumExecutors()));
-            }
-            return r;
-        } catch (AmazonClientException e) {
-            LOGGER.log(Level.WARNING,"Failed to count the # of live instances on EC2",e);
-            return Collections.emptyList();
+                            // joins the other slaves of this burst in one update of the node list
+                            NodeRegistrar.get().add(s);
+                            // EC2 instances may have a long init script. If we declare
+                            // the provisioning complete by returning without the connect
+                            // operation, NodeProvisioner may decide that it still wants
+                            // one more instance, because it sees that (1) all the slaves
+                            // are offline (because it's still being launched) and
+                            // (2) there's no capacity provisioned yet.
+                            //
+                            // deferring the completion of provisioning until the launch
+                            // goes successful prevents this problem.
+                            s.toComputer().connect(false).get();
+                            return s;
+                        }
+                    })
+                    ,numExecutors));
         }
+        return r;
     }
 
     @Override
@@ -16,9 +16,7 @@ import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.QueryParameter;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
-import com.amazonaws.services.ec2.model.GetConsoleOutputRequest;
 import com.amazonaws.services.ec2.model.Instance;
 
 /**
@@ -47,9 +45,14 @@ public class EC2Computer extends SlaveComputer {
      * Gets the EC2 console output.
      */
     public String getConsoleOutput() throws AmazonClientException {
-        AmazonEC2 ec2 = EC2Cloud.get().connect();
-        GetConsoleOutputRequest request = new GetConsoleOutputRequest(getInstanceId());
-        return ec2.getConsoleOutput(request).getOutput();
+        return ConsoleOutputTracker.get().getOutput(getInstanceId(), CONSOLE_MAX_AGE);
+    }
+
+    /**
+     * Progress of the init script, or null if it hasn't run since Jenkins started.
+     */
+    public InitScriptProgress getInitScriptProgress() {
+        return InitScriptProgress.get(getName());
     }
 
     /**
@@ -78,7 +81,8 @@ public class EC2Computer extends SlaveComputer {
      * Gets the current state of the instance.
      *
      * <p>
-     * Unlike {@link #describeInstance()}, this method always return the current status by calling EC2.
+     * Unlike {@link #describeInstance()}, this method always return the current status by calling EC2,
+     * unless the node has just been handed a fresh description in bulk (see {@link InstanceReconciler}.)
      */
     public InstanceState getState() throws AmazonClientException {
         ec2InstanceDescription=_describeInstance();
@@ -99,6 +103,16 @@ public class EC2Computer extends SlaveComputer {
         return Util.getTimeSpanString(getUptime());
     }
 
+    /**
+     * Position of this computer in the {@link ReconnectScheduler} queue.
+     *
+     * @return
+     *      0 if it's being connected right now, -1 if it's not waiting to be connected.
+     */
+    public int getReconnectQueuePosition() {
+        return ReconnectScheduler.get().getQueuePosition(this);
+    }
+
     private Instance _describeInstance() throws AmazonClientException {
         return getNode().describeInstance();
     }
@@ -127,5 +141,9 @@ public class EC2Computer extends SlaveComputer {
     public String getRootCommandPrefix() {
         return getNode().getRootCommandPrefix();
     }
-    
+
+    /**
+     * The console output shown on the computer page doesn't need to be fetched on every page view.
+     */
+    private static final long CONSOLE_MAX_AGE = 10*1000;
 }
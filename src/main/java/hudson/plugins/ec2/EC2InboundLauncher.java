@@ -0,0 +1,145 @@
+package hudson.plugins.ec2;
+
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.plugins.ec2.ssh.EC2UnixLauncher;
+import hudson.slaves.ComputerLauncher;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.security.SecureRandom;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.Instance;
+
+/**
+ * {@link ComputerLauncher} for slaves that connect back to Jenkins by themselves, so that launching them
+ * involves no SSH at all: no polling for sshd, no key handling, no session held open on the master.
+ *
+ * <p>
+ * {@link SlaveTemplate} puts a bootstrap script into the user data of instances that use this launcher.
+ * On the first boot, it runs the init script, downloads <tt>slave.jar</tt> from Jenkins, trades the token
+ * of the launch for the JNLP secret of its own node at {@link EC2BootstrapAction}, and connects as a JNLP slave.
+ * So all this launcher has to do is wait, up to {@link EC2UnixLauncher#INIT_SCRIPT_TIMEOUT}, since the init script runs first.
+ */
+public class EC2InboundLauncher extends EC2ComputerLauncher {
+    @Override
+    protected void launch(EC2Computer computer, PrintStream logger, Instance inst) throws AmazonClientException, IOException, InterruptedException {
+        if (computer.isOnline())
+            return;
+        logger.println("Waiting for "+computer.getInstanceId()+" to connect back; its boot log is in /var/log/jenkins-slave.log");
+
+        // returning before the slave is online would make NodeProvisioner think the capacity isn't coming, and launch more
+        long timeout = System.currentTimeMillis()+TimeUnit2.MINUTES.toMillis(EC2UnixLauncher.INIT_SCRIPT_TIMEOUT);
+        while (!computer.isOnline()) {
+            if (System.currentTimeMillis()>timeout)
+                throw new IOException(computer.getInstanceId()+" didn't connect back within "+EC2UnixLauncher.INIT_SCRIPT_TIMEOUT+" minutes");
+            Thread.sleep(5000);
+        }
+    }
+
+    /**
+     * Generates the secret that instances of one launch use to get the JNLP secret of their node.
+     */
+    public static String newToken() {
+        byte[] random = new byte[16];
+        RANDOM.nextBytes(random);
+        return Util.toHexString(random);
+    }
+
+    /**
+     * Builds the user data of instances that connect back to Jenkins. The {@linkplain SlaveTemplate#userData user data}
+     * of the template is passed on to cloud-init alongside the bootstrap script.
+     *
+     * @throws AmazonClientException
+     *      if Jenkins doesn't know its own URL, since the instances would have nowhere to connect to.
+     */
+    public static String buildUserData(SlaveTemplate t, String token) throws AmazonClientException, IOException {
+        String url = Hudson.getInstance().getRootUrl();
+        if (url==null)
+            throw new AmazonClientException("Inbound slaves need the Jenkins URL to be set in the system configuration");
+
+        String jdk = "";
+        try {
+            jdk = EC2Cloud.get().buildPresignedURL("/hudson-ci/jdk/linux-i586/java1.6.0_12.tgz").toString();
+        } catch (AmazonClientException e) {
+            // only needed if the AMI doesn't have Java
+        }
+
+        String script = bootstrapScript(url, token, t.remoteFS, t.remoteAdmin, t.jvmopts, jdk, t.initScript,
+                t.stripeInstanceStore, t.cacheSnapshotId!=null ? t.cacheMountPoint : null);
+        return combine(script, t.userData);
+    }
+
+    /*package*/ static String bootstrapScript(String jenkinsUrl, String token, String remoteFS, String user, String jvmopts, String jdkUrl,
+                                              String initScript, boolean stripeInstanceStore, String cacheMountPoint) throws IOException {
+        String script = resource("inbound-bootstrap.sh");
+        script = script.replace("@JENKINS_URL@", quote(jenkinsUrl));
+        script = script.replace("@TOKEN@", quote(token));
+        script = script.replace("@REMOTE_FS@", quote(StringUtils.defaultIfEmpty(remoteFS, "/tmp/hudson")));
+        script = script.replace("@RUN_AS@", quote(StringUtils.defaultIfEmpty(user, "root")));
+        script = script.replace("@JVMOPTS@", quote(jvmopts));
+        script = script.replace("@JDK_URL@", quote(jdkUrl));
+        script = script.replace("@INIT_SCRIPT@", quote(encode(initScript)));
+        script = script.replace("@STRIPE_SCRIPT@", quote(stripeInstanceStore ? encode(resource("ssh/stripe-instance-store.sh")) : null));
+        script = script.replace("@CACHE_SCRIPT@", quote(cacheMountPoint!=null ? encode(resource("ssh/mount-cache-volume.sh")) : null));
+        script = script.replace("@CACHE_DEVICE@", quote(CacheSnapshotRefresher.DEVICE));
+        script = script.replace("@CACHE_MOUNT_POINT@", quote(cacheMountPoint));
+        return script;
+    }
+
+    /**
+     * Passes both the bootstrap script and the user data of the template to cloud-init,
+     * as parts of a multi-part MIME message.
+     */
+    /*package*/ static String combine(String script, String userData) {
+        if (StringUtils.isBlank(userData))
+            return script;
+
+        String type = "text/plain";
+        if (userData.startsWith("#!"))
+            type = "text/x-shellscript";
+        else if (userData.startsWith("#cloud-config"))
+            type = "text/cloud-config";
+        else if (userData.startsWith("#include"))
+            type = "text/x-include-url";
+
+        StringBuilder buf = new StringBuilder();
+        buf.append("Content-Type: multipart/mixed; boundary=\"").append(BOUNDARY).append("\"\n");
+        buf.append("MIME-Version: 1.0\n\n");
+        buf.append("--").append(BOUNDARY).append('\n');
+        buf.append("Content-Type: text/x-shellscript; charset=\"utf-8\"\n\n");
+        buf.append(script).append('\n');
+        buf.append("--").append(BOUNDARY).append('\n');
+        buf.append("Content-Type: ").append(type).append("; charset=\"utf-8\"\n\n");
+        buf.append(userData).append('\n');
+        buf.append("--").append(BOUNDARY).append("--\n");
+        return buf.toString();
+    }
+
+    /**
+     * Quotes the value for the shell. Null becomes the empty string.
+     */
+    /*package*/ static String quote(String s) {
+        return "'"+StringUtils.defaultString(s).replace("'", "'\\''")+"'";
+    }
+
+    private static String encode(String script) throws IOException {
+        if (StringUtils.isBlank(script))
+            return null;
+        return new String(Base64.encodeBase64(script.getBytes("UTF-8")), "US-ASCII");
+    }
+
+    private static String resource(String name) throws IOException {
+        return new String(IOUtils.toByteArray(EC2InboundLauncher.class.getResourceAsStream(name)), "UTF-8");
+    }
+
+    private static final String BOUNDARY = "==EC2-PLUGIN-BOUNDARY==";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+}
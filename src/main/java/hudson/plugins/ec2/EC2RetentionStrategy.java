@@ -53,11 +53,13 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> {
     }
 
     /**
-     * Try to connect to it ASAP.
+     * Try to connect to it ASAP, but without stampeding the master when many nodes start at once.
+     *
+     * @see ReconnectScheduler
      */
     @Override
     public void start(EC2Computer c) {
-        c.connect(false);
+        ReconnectScheduler.get().schedule(c);
     }
 
     // no registration since this retention strategy is used only for EC2 nodes that we provision automatically.
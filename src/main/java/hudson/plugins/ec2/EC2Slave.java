@@ -4,18 +4,18 @@ import hudson.Extension;
 import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor.FormException;
-import hudson.model.Hudson;
 import hudson.model.Slave;
 import hudson.model.Node;
 import hudson.plugins.ec2.ssh.EC2UnixLauncher;
+import hudson.plugins.ec2.ssh.KnownHostsVerifier;
+import hudson.slaves.EphemeralNode;
 import hudson.slaves.NodeProperty;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.List;
-import java.util.LinkedList;
-import java.util.HashSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,28 +33,70 @@ import net.sf.json.JSONObject;
 
 /**
  * Slave running on EC2.
+ *
+ * <p>
+ * These come and go too often to be part of the node configuration of Jenkins,
+ * so they're kept in the {@link NodeJournal} through {@link NodeRegistrar} instead.
  * 
  * @author Kohsuke Kawaguchi
  */
-public final class EC2Slave extends Slave {
+public final class EC2Slave extends Slave implements EphemeralNode {
     /**
-     * Comes from {@link SlaveTemplate#initScript}.
+     * {@link TemplateSnapshot#hash} of the init script and the other settings that come from the template.
+     */
+    private String snapshot;
+    private transient volatile TemplateSnapshot resolvedSnapshot;
+    /**
+     * Kept by each slave before {@link TemplateSnapshot}. Only here to read old data.
      */
-    public final String initScript;
-    public final String remoteAdmin; // e.g. 'ubuntu'
-    public final String rootCommandPrefix; // e.g. 'sudo'
-    public final String jvmopts; //e.g. -Xmx1g
+    @Deprecated
+    private String initScript, remoteAdmin, rootCommandPrefix, jvmopts, idleTerminationMinutes;
     public final boolean stopOnTerminate;
-    public final String idleTerminationMinutes;
 
     // Temporary stuff that is obtained live from EC2
     public String publicDNS;
     public String privateDNS;
+    public String availabilityZone;
+    /**
+     * {@linkplain EC2Tag#intern(List) Interned}, so this list may be shared with other slaves. Don't modify it.
+     */
     public List<EC2Tag> tags;
     public final boolean usePrivateDnsName;
+    /**
+     * Comes from {@link SlaveTemplate#stripeInstanceStore}.
+     */
+    public final boolean stripeInstanceStore;
+    /**
+     * Comes from {@link SlaveTemplate#cacheSnapshotId}: the configured snapshot, not necessarily the one
+     * the volume was actually created from. Null if the slave has no cache volume.
+     */
+    public final String cacheSnapshotId;
+    /**
+     * Comes from {@link SlaveTemplate#cacheMountPoint}.
+     */
+    public final String cacheMountPoint;
+    /**
+     * Comes from {@link SlaveTemplate#inboundAgent}. If true, the slave connects back by itself
+     * through {@link EC2InboundLauncher} instead of us connecting to it over SSH.
+     */
+    public final boolean inboundAgent;
+    /**
+     * Comes from {@link SlaveTemplate#directChannel}.
+     */
+    public final boolean directChannel;
+    /**
+     * Token in the user data of the instance, which it trades for its JNLP secret at {@link EC2BootstrapAction}.
+     */
+    private String bootstrapToken;
 
     private long last_live_fetch = 0;
 
+    /**
+     * Description of the instance obtained in bulk elsewhere (see {@link InstanceReconciler}),
+     * handed out by the first {@link #describeInstance()}, if it's still fresh by then.
+     */
+    private transient volatile Instance liveInstance;
+
     /* 20 seconds is our polling time for refreshing EC2 data that may change externally. */
     private static final long POLL_PERIOD = 20 * 1000;
 
@@ -89,22 +131,32 @@ public final class EC2Slave extends Slave {
     */
 
 
-    @DataBoundConstructor
     public EC2Slave(String instanceId, String description, String remoteFS, int sshPort, int numExecutors, Mode mode, String labelString, String initScript, List<? extends NodeProperty<?>> nodeProperties, String remoteAdmin, String rootCommandPrefix, String jvmopts, boolean stopOnTerminate, String idleTerminationMinutes, String publicDNS, String privateDNS, List<EC2Tag> tags, boolean usePrivateDnsName) throws FormException, IOException {
+        this(instanceId, description, remoteFS, sshPort, numExecutors, mode, labelString, initScript, nodeProperties, remoteAdmin, rootCommandPrefix, jvmopts, stopOnTerminate, idleTerminationMinutes, publicDNS, privateDNS, tags, usePrivateDnsName, false, null, null, false, false);
+    }
+
+    @DataBoundConstructor
+    public EC2Slave(String instanceId, String description, String remoteFS, int sshPort, int numExecutors, Mode mode, String labelString, String initScript, List<? extends NodeProperty<?>> nodeProperties, String remoteAdmin, String rootCommandPrefix, String jvmopts, boolean stopOnTerminate, String idleTerminationMinutes, String publicDNS, String privateDNS, List<EC2Tag> tags, boolean usePrivateDnsName, boolean stripeInstanceStore, String cacheSnapshotId, String cacheMountPoint, boolean inboundAgent, boolean directChannel) throws FormException, IOException {
+        this(instanceId, description, remoteFS, sshPort, numExecutors, mode, labelString, TemplateSnapshot.of(initScript, remoteAdmin, rootCommandPrefix, jvmopts, idleTerminationMinutes), nodeProperties, stopOnTerminate, publicDNS, privateDNS, tags, usePrivateDnsName, stripeInstanceStore, cacheSnapshotId, cacheMountPoint, inboundAgent, directChannel);
+    }
+
+    public EC2Slave(String instanceId, String description, String remoteFS, int sshPort, int numExecutors, Mode mode, String labelString, TemplateSnapshot snapshot, List<? extends NodeProperty<?>> nodeProperties, boolean stopOnTerminate, String publicDNS, String privateDNS, List<EC2Tag> tags, boolean usePrivateDnsName, boolean stripeInstanceStore, String cacheSnapshotId, String cacheMountPoint, boolean inboundAgent, boolean directChannel) throws FormException, IOException {
 
-        super(instanceId, description, remoteFS, numExecutors, mode, labelString, new EC2UnixLauncher(), new EC2RetentionStrategy(idleTerminationMinutes), nodeProperties);
+        super(instanceId, description, remoteFS, numExecutors, mode, labelString, inboundAgent ? new EC2InboundLauncher() : new EC2UnixLauncher(), new EC2RetentionStrategy(snapshot.idleTerminationMinutes), nodeProperties);
 
-        this.initScript  = initScript;
-        this.remoteAdmin = remoteAdmin;
-        this.rootCommandPrefix = rootCommandPrefix;
-        this.jvmopts = jvmopts;
+        this.snapshot = snapshot.hash;
+        this.resolvedSnapshot = snapshot;
         this.sshPort = sshPort;
         this.stopOnTerminate = stopOnTerminate;
-        this.idleTerminationMinutes = idleTerminationMinutes;
         this.publicDNS = publicDNS;
         this.privateDNS = privateDNS;
-        this.tags = tags;
+        this.tags = EC2Tag.intern(tags);
         this.usePrivateDnsName = usePrivateDnsName;
+        this.stripeInstanceStore = stripeInstanceStore;
+        this.cacheSnapshotId = Util.fixEmptyAndTrim(cacheSnapshotId);
+        this.cacheMountPoint = Util.fixEmptyAndTrim(cacheMountPoint);
+        this.inboundAgent = inboundAgent;
+        this.directChannel = directChannel;
     }
 
     /**
@@ -115,24 +167,12 @@ public final class EC2Slave extends Slave {
     }
 
     /**
-     * See http://aws.amazon.com/ec2/instance-types/
+     * Default number of executors for the given instance type.
+     *
+     * @see InstanceCapacity
      */
     /*package*/ static int toNumExecutors(InstanceType it) {
-        switch (it) {
-        case T1Micro:       return 1;
-        case M1Small:       return 1;
-        case M1Medium:      return 2;
-        case M1Large:       return 4;
-        case C1Medium:      return 5;
-        case M2Xlarge:      return 6;
-        case M1Xlarge:      return 8;
-        case M22xlarge:     return 13;
-        case C1Xlarge:      return 20;
-        case M24xlarge:     return 26;
-        case Cc14xlarge:    return 33;
-        case Cg14xlarge:    return 33;
-        default:            throw new AssertionError();
-        }
+        return InstanceCapacity.getNumExecutors(it, InstanceCapacity.Policy.ECU, null);
     }
 
     /**
@@ -147,6 +187,10 @@ public final class EC2Slave extends Slave {
         return new EC2Computer(this);
     }
 
+    public EC2Slave asNode() {
+        return this;
+    }
+
     /**
      * Terminates the instance in EC2.
      */
@@ -154,9 +198,12 @@ public final class EC2Slave extends Slave {
 		EC2Slave.terminate(EC2Cloud.get(), getInstanceId(), stopOnTerminate);
 
 		try {
-			Hudson.getInstance().removeNode(this);
+			NodeRegistrar.get().remove(this);
 		} catch (IOException e) {
 			LOGGER.log(Level.WARNING,"Failed to terminate EC2 instance: "+getInstanceId(),e);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING,"Interrupted while removing the node of EC2 instance: "+getInstanceId(),e);
+			Thread.currentThread().interrupt();
 		}
     }
 
@@ -175,25 +222,87 @@ public final class EC2Slave extends Slave {
 				ec2.terminateInstances(request);
 				LOGGER.info("Terminated EC2 instance (terminated): "+instanceID);
 			}
+			forget(instanceID);
 		} catch (AmazonClientException e) {
 			LOGGER.log(Level.WARNING,"Failed to terminate EC2 instance: "+instanceID,e);
 		}
 	}
 
+	/**
+	 * Lets go of what we keep about an instance that's gone, be it a node, a machine of a build, or a leaked one.
+	 */
+	/*package*/ static void forget(String instanceID) {
+		CapacityLedger.get().release(instanceID);
+		KnownHostsVerifier.forget(instanceID);
+		InitScriptProgress.remove(instanceID);
+		ConsoleOutputTracker.get().forget(instanceID);
+	}
+
+    /*package*/ void setBootstrapToken(String token) {
+        this.bootstrapToken = token;
+    }
+
+    /**
+     * Is this the token that was put into the user data of this instance?
+     */
+    public boolean isBootstrapToken(String token) {
+        return bootstrapToken!=null && token!=null
+            && MessageDigest.isEqual(bootstrapToken.getBytes(), token.getBytes());
+    }
+
+    /**
+     * Gets the settings that came from the template, resolving them on first use.
+     */
+    public TemplateSnapshot getSnapshot() {
+        TemplateSnapshot s = resolvedSnapshot;
+        if (s!=null)
+            return s;
+        synchronized (this) {
+            if (snapshot==null) {
+                // data from before snapshots
+                s = TemplateSnapshot.of(initScript, remoteAdmin, rootCommandPrefix, jvmopts, idleTerminationMinutes);
+                snapshot = s.hash;
+                initScript = remoteAdmin = rootCommandPrefix = jvmopts = idleTerminationMinutes = null;
+            } else {
+                s = TemplateSnapshot.get(snapshot);
+                if (s==null) {
+                    LOGGER.warning("The template settings of "+getNodeName()+" are lost, so it has no init script, JVM options and such");
+                    s = TemplateSnapshot.of(null, null, null, null, null);
+                    snapshot = s.hash;
+                }
+            }
+            resolvedSnapshot = s;
+        }
+        return s;
+    }
+
+    /**
+     * Comes from {@link SlaveTemplate#initScript}.
+     */
+    public String getInitScript() {
+        return getSnapshot().initScript;
+    }
+
+    public String getIdleTerminationMinutes() {
+        return getSnapshot().idleTerminationMinutes;
+    }
+
     public String getRemoteAdmin() {
+        String remoteAdmin = getSnapshot().remoteAdmin; // e.g. 'ubuntu'
         if (remoteAdmin == null || remoteAdmin.length() == 0)
             return "root";
         return remoteAdmin;
     }
 
     public String getRootCommandPrefix() {
+        String rootCommandPrefix = getSnapshot().rootCommandPrefix; // e.g. 'sudo'
         if (rootCommandPrefix == null || rootCommandPrefix.length() == 0)
             return "";
         return rootCommandPrefix + " ";
     }
 
     public String getJvmopts() {
-        return Util.fixNull(jvmopts);
+        return Util.fixNull(getSnapshot().jvmopts); //e.g. -Xmx1g
     }
 
     public int getSshPort() {
@@ -218,58 +327,40 @@ public final class EC2Slave extends Slave {
         DescribeInstancesRequest request = new DescribeInstancesRequest();
     	request.setInstanceIds(Collections.<String>singletonList(getNodeName()));
         Instance i = EC2Cloud.get().connect().describeInstances(request).getReservations().get(0).getInstances().get(0);
+        updateLiveInstanceData(i);
+    }
+
+    /**
+     * Updates the data we keep from EC2 with an instance description that the caller has already obtained,
+     * for example through {@link EC2Cloud#describeSlaveInstances()}.
+     */
+    /*package*/ void updateLiveInstanceData(Instance i) {
         publicDNS = i.getPublicDnsName();
         privateDNS = i.getPrivateIpAddress();
-        tags = new LinkedList<EC2Tag>();
-
-        for (Tag t : i.getTags()){
-            tags.add(new EC2Tag(t.getKey(), t.getValue()));
-        }
+        if (i.getPlacement()!=null)
+            availabilityZone = i.getPlacement().getAvailabilityZone();
+        tags = EC2Tag.intern(EC2Tag.fromAmazonTags(i.getTags()));
+        last_live_fetch = System.currentTimeMillis();
     }
 
-
-	/* Clears all existing tag data so that we can force the instance into a known state */
-    private void clearLiveInstancedata() throws AmazonClientException {
-        DescribeInstancesRequest request = new DescribeInstancesRequest();
-        request.setInstanceIds( Collections.<String>singletonList(getNodeName()));
-        Instance inst = EC2Cloud.get().connect().describeInstances(request).getReservations().get(0).getInstances().get(0);
-
-        /* Now that we have our instance, we can clear the tags on it */
-        if (!tags.isEmpty()) {
-            HashSet<Tag> inst_tags = new HashSet<Tag>();
-
-            for(EC2Tag t : tags) {
-                inst_tags.add(new Tag(t.getName(), t.getValue()));
-            }
-
-            DeleteTagsRequest tag_request = new DeleteTagsRequest();
-            tag_request.withResources(inst.getInstanceId()).setTags(inst_tags);
-            EC2Cloud.get().connect().deleteTags(tag_request);
-        }
+    /**
+     * Like {@link #updateLiveInstanceData(Instance)}, but also lets the next {@link #describeInstance()} answer from
+     * the given description, if it comes within a short while. Used to pre-populate nodes after a restart
+     * so that launchers don't all go to EC2 at once. Later callers, like the retention strategy deciding
+     * whether to terminate, always get the current state.
+     */
+    /*package*/ void seedInstanceDescription(Instance i) {
+        updateLiveInstanceData(i);
+        liveInstance = i;
     }
 
 
-    /* Sets tags on an instance.  This will not clear existing tag data, so call clearLiveInstancedata if needed */
-    private void pushLiveInstancedata() throws AmazonClientException {
-        DescribeInstancesRequest request = new DescribeInstancesRequest();
-        request.setInstanceIds(Collections.<String>singletonList(getNodeName()));
-        Instance inst = EC2Cloud.get().connect().describeInstances(request).getReservations().get(0).getInstances().get(0);
-
-        /* Now that we have our instance, we can set tags on it */
-        if (!tags.isEmpty()) {
-            HashSet<Tag> inst_tags = new HashSet<Tag>();
-
-            for(EC2Tag t : tags) {
-                inst_tags.add(new Tag(t.getName(), t.getValue()));
-            }            
-
-            CreateTagsRequest tag_request = new CreateTagsRequest();
-            tag_request.withResources(inst.getInstanceId()).setTags(inst_tags);
-            EC2Cloud.get().connect().createTags(tag_request);
-        }
-    }
-
     public Instance describeInstance() throws AmazonClientException {
+        Instance i = liveInstance;
+        liveInstance = null;    // good for one lookup only
+        if (i != null && System.currentTimeMillis() - last_live_fetch < POLL_PERIOD)
+            return i;
+
         DescribeInstancesRequest request = new DescribeInstancesRequest();
         request.setInstanceIds(Collections.<String>singletonList(this.getInstanceId()));
         return EC2Cloud.get().connect().describeInstances(request).getReservations().get(0).getInstances().get(0);
@@ -295,15 +386,13 @@ public final class EC2Slave extends Slave {
             return null;
         }
 
-        Node result = super.reconfigure(req, form);
-
-        /* Get rid of the old tags, as represented by ourselves */
-        fetchLiveInstanceData(true);
-        clearLiveInstancedata();
+        EC2Slave result = (EC2Slave) super.reconfigure(req, form);
+        result.bootstrapToken = bootstrapToken;
 
-        /* Set the new tags, as represented by our successor */
-        ((EC2Slave) result).pushLiveInstancedata();
+        /* Change only the tags that differ between ourselves and our successor, so the instance is never without the others */
+        new TagReconciler().add(getInstanceId(), getTags(), result.tags).apply(EC2Cloud.get().connect());
 
+        NodeRegistrar.get().journal(result);
         return result;
     }
 
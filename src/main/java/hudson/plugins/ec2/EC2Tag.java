@@ -5,8 +5,12 @@ import hudson.model.AbstractDescribableImpl;
 import hudson.Extension;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import com.amazonaws.services.ec2.model.Tag;
 
@@ -50,13 +54,18 @@ public class EC2Tag extends AbstractDescribableImpl<EC2Tag>
       if (!(o instanceof EC2Tag)) return false;
 
       EC2Tag other = (EC2Tag) o;
-      if ((name == null && other.name != null) || !name.equals( other.name)) return false;
-      if ((value == null && other.value != null) || !value.equals( other.value)) return false;
+      if (name == null ? other.name != null : !name.equals( other.name)) return false;
+      if (value == null ? other.value != null : !value.equals( other.value)) return false;
 
       return true;
    }
 
 
+   public int hashCode() {
+      return (name == null ? 0 : name.hashCode()) * 31 + (value == null ? 0 : value.hashCode());
+   }
+
+
    @Extension
    public static class DescriptorImpl extends Descriptor<EC2Tag> {
       public String getDisplayName() { return ""; }
@@ -76,4 +85,36 @@ public class EC2Tag extends AbstractDescribableImpl<EC2Tag>
 
        return result;
    }
+
+
+   /* Shares equal tags, and equal lists of them, among the many slaves that carry the same tags */
+   public static List<EC2Tag> intern(List<EC2Tag> tags) {
+       if (null == tags) {
+           return null;
+       }
+
+       List<EC2Tag> result = new ArrayList<EC2Tag>(tags.size());
+       for (EC2Tag t : tags) {
+           result.add(canonical(t));
+       }
+
+       return canonical(result);
+   }
+
+
+   @SuppressWarnings("unchecked")
+   private static <T> T canonical(T o) {
+       synchronized (POOL) {
+           WeakReference<Object> ref = POOL.get(o);
+           Object existing = ref != null ? ref.get() : null;
+           if (existing != null) {
+               return (T) existing;
+           }
+           POOL.put(o, new WeakReference<Object>(o));
+           return o;
+       }
+   }
+
+
+   private static final Map<Object,WeakReference<Object>> POOL = new WeakHashMap<Object,WeakReference<Object>>();
 }
@@ -1,47 +1,133 @@
 package hudson.plugins.ec2;
 
-import hudson.model.BuildListener;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.Instance;
+
 /**
  * When added to a build, all the useful variables about the given machines are added to the build's environment.
  *
+ * <p>
+ * The details of every machine go into a roster file in the workspace, one per {@link StartEc2Builder} step
+ * of the build ({@code ec2-roster-1.csv}, {@code ec2-roster-2.csv}, ...), one line per machine:
+ * <pre>
+ * index,instanceId,privateDns,publicDns,privateIp,publicIp,availabilityZone
+ * </pre>
+ * and the environment only gets the summary: {@code EC2_ROSTER} (path of the file of the latest step), {@code EC2_ROSTER_SIZE},
+ * and {@code instance}, the space separated instance IDs that {@link EndEc2Builder} is usually given.
+ * Small cohorts (up to {@link #PER_MACHINE_LIMIT} machines) also get the per-machine variables
+ * {@code instanceN}, {@code publicDnsN}, {@code privateDnsN} and the {@code publicDns}/{@code privateDns} lists
+ * as before; for large cohorts they'd bloat the environment of every process the build starts.
+ *
  * User: Joel Johnson
  * Date: 6/30/12
  * Time: 5:43 PM
  */
 public class Ec2MachineVariables extends EnvironmentAction {
-	public Ec2MachineVariables(Iterable<EC2Slave> machines, PrintStream listener) {
-		super(getVariablesFromMachines(machines, listener));
+	public Ec2MachineVariables(AbstractBuild<?, ?> build, List<EC2Slave> machines, PrintStream listener) throws IOException, InterruptedException {
+		super(getVariablesFromMachines(build, machines, listener));
 	}
 
-	private static Map<String, String> getVariablesFromMachines(Iterable<EC2Slave> machines, PrintStream listener) {
+	private static Map<String, String> getVariablesFromMachines(AbstractBuild<?, ?> build, List<EC2Slave> machines, PrintStream listener) throws IOException, InterruptedException {
+		Map<String, Instance> instances = describe(machines, listener);
+
 		Map<String, String> result = new HashMap<String, String>();
+		boolean perMachine = machines.size() <= PER_MACHINE_LIMIT;
+		StringBuilder roster = new StringBuilder();
 		StringBuilder instanceIds = new StringBuilder();
 		StringBuilder publicDnsBuilder = new StringBuilder();
 		StringBuilder privateDnsBuilder = new StringBuilder();
         int i = 0;
         for (EC2Slave slave : machines) {
             String instanceId = slave.getInstanceId();
-            String publicDns = slave.getPublicDNS();
-            String privateDns = slave.getPrivateDNS();
+            // these have just been refreshed by describe(), so the fields are current
+            String publicDns = slave.publicDNS;
+            String privateDns = slave.privateDNS;
+            Instance inst = instances.get(instanceId);
+
+            roster.append(i).append(',').append(instanceId)
+                  .append(',').append(fixNull(inst != null ? inst.getPrivateDnsName() : privateDns))
+                  .append(',').append(fixNull(publicDns))
+                  .append(',').append(fixNull(inst != null ? inst.getPrivateIpAddress() : privateDns))
+                  .append(',').append(fixNull(inst != null ? inst.getPublicIpAddress() : null))
+                  .append(',').append(fixNull(slave.availabilityZone)).append('\n');
+
             instanceIds.append(instanceId).append(' ');
-            publicDnsBuilder.append(publicDns).append(' ');
-            privateDnsBuilder.append(privateDns).append(' ');
-            addVariable(result, listener, "instance" + i, instanceId);
-            addVariable(result, listener, "publicDns" + i, publicDns);
-            addVariable(result, listener, "privateDns" + i, privateDns);
+            if (perMachine) {
+                publicDnsBuilder.append(publicDns).append(' ');
+                privateDnsBuilder.append(privateDns).append(' ');
+                addVariable(result, listener, "instance" + i, instanceId);
+                addVariable(result, listener, "publicDns" + i, publicDns);
+                addVariable(result, listener, "privateDns" + i, privateDns);
+            }
             i++;
 		}
+
+		// earlier steps of the build have added theirs already
+		int step = build.getActions(Ec2MachineVariables.class).size() + 1;
+		FilePath rosterFile = writeRoster(build, step, roster.toString());
+		if (rosterFile != null) {
+			addVariable(result, listener, "EC2_ROSTER", rosterFile.getRemote());
+		}
+		addVariable(result, listener, "EC2_ROSTER_SIZE", String.valueOf(machines.size()));
         addVariable(result, listener, "instance", instanceIds.toString().trim());
-        addVariable(result, listener, "publicDns", publicDnsBuilder.toString().trim());
-        addVariable(result, listener, "privateDns", privateDnsBuilder.toString().trim());
+        if (perMachine) {
+            addVariable(result, listener, "publicDns", publicDnsBuilder.toString().trim());
+            addVariable(result, listener, "privateDns", privateDnsBuilder.toString().trim());
+        } else {
+            listener.println("Not adding per-machine variables for " + machines.size() + " machines, see EC2_ROSTER instead.");
+        }
 		return result;
 	}
 
+	/**
+	 * Refreshes what we know about the machines with a single describeInstances call, instead of one per machine.
+	 */
+	private static Map<String, Instance> describe(List<EC2Slave> machines, PrintStream listener) {
+		Map<String, EC2Slave> byId = new HashMap<String, EC2Slave>();
+		for (EC2Slave slave : machines) {
+			byId.put(slave.getInstanceId(), slave);
+		}
+
+		Map<String, Instance> result = new HashMap<String, Instance>();
+		EC2Cloud cloud = EC2Cloud.get();
+		if (cloud == null || byId.isEmpty()) {
+			return result;
+		}
+		try {
+			for (Instance inst : cloud.describeInstances(new ArrayList<String>(byId.keySet()))) {
+				byId.get(inst.getInstanceId()).updateLiveInstanceData(inst);
+				result.put(inst.getInstanceId(), inst);
+			}
+		} catch (AmazonClientException e) {
+			listener.println("Failed to describe the machines, using what we already know: " + e.getMessage());
+		}
+		return result;
+	}
+
+	private static FilePath writeRoster(AbstractBuild<?, ?> build, int step, String roster) throws IOException, InterruptedException {
+		FilePath workspace = build.getWorkspace();
+		if (workspace == null) {
+			return null;
+		}
+		FilePath file = workspace.child(String.format(ROSTER_FILE, step));
+		file.write(roster, "UTF-8");
+		return file;
+	}
+
+	private static String fixNull(String s) {
+		return s == null ? "" : s;
+	}
+
 	/**
 	 * Adds the given name/value pair to the map and also logs it to the given PrintStream
 	 */
@@ -53,4 +139,14 @@ public class Ec2MachineVariables extends EnvironmentAction {
 		listener.println("'" + name + "' => '" + value + "'");
 		mapToAddTo.put(name, value);
 	}
+
+	/**
+	 * Name of the roster file, relative to the workspace, given the number of the step in the build.
+	 */
+	public static final String ROSTER_FILE = "ec2-roster-%d.csv";
+
+	/**
+	 * Cohorts up to this size also get the variables of each machine in the environment.
+	 */
+	public static int PER_MACHINE_LIMIT = Integer.getInteger(Ec2MachineVariables.class.getName() + ".perMachineLimit", 20);
 }
@@ -1,17 +1,29 @@
 package hudson.plugins.ec2;
 
 import hudson.Extension;
+import hudson.model.Computer;
 import hudson.util.FormValidation;
 import hudson.util.IOException2;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -20,11 +32,11 @@ import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import javax.servlet.ServletException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
+import org.apache.commons.io.IOUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerResponse;
@@ -35,20 +47,24 @@ import org.kohsuke.stapler.StaplerResponse;
  * @author Kohsuke Kawaguchi
  */
 public class Eucalyptus extends EC2Cloud {
-    private transient Metadata metadata;
-
     public final URL url;
 
-    @DataBoundConstructor
     public Eucalyptus(URL url, String accessId, String secretKey, String privateKey, String instanceCapStr, List<SlaveTemplate> templates) throws IOException {
-        super("eucalyptus", accessId, secretKey, privateKey, instanceCapStr, templates);
+        this(url, accessId, secretKey, privateKey, instanceCapStr, templates, null, null, null);
+    }
+
+    @DataBoundConstructor
+    public Eucalyptus(URL url, String accessId, String secretKey, String privateKey, String instanceCapStr, List<SlaveTemplate> templates, String jumpHost, String jumpUser, String labelCaps) throws IOException {
+        super("eucalyptus", accessId, secretKey, privateKey, instanceCapStr, templates, jumpHost, jumpUser, labelCaps);
         this.url = url;
     }
 
+    /**
+     * Metadata is cached across reconfigurations and restarts, so this only blocks
+     * the very first time we talk to a given Eucalyptus.
+     */
     private Metadata getMetadata() throws IOException {
-        if (metadata==null)
-            metadata = new Metadata(url);
-        return metadata;
+        return Metadata.get(url);
     }
 
     @Override
@@ -74,72 +90,215 @@ public class Eucalyptus extends EC2Cloud {
                 @QueryParameter String accessId,
                 @QueryParameter String secretKey,
                 @QueryParameter String privateKey) throws IOException, ServletException {
-            return super.doTestConnection(new Metadata(url).ec2endpoint,accessId,secretKey,privateKey);
+            return super.doTestConnection(Metadata.get(url).ec2endpoint,accessId,secretKey,privateKey);
         }
 
         @Override
 		public FormValidation doGenerateKey(
                 StaplerResponse rsp, @QueryParameter URL url, @QueryParameter String accessId, @QueryParameter String secretKey) throws IOException, ServletException {
-            return super.doGenerateKey(rsp, new Metadata(url).ec2endpoint, accessId,secretKey);
+            return super.doGenerateKey(rsp, Metadata.get(url).ec2endpoint, accessId,secretKey);
         }
     }
 
     /**
      * Eucalyptus service endpoint metadata.
+     *
+     * <p>
+     * Use {@link #get(URL)} to obtain one, which caches them in {@link PluginImpl} so that they survive
+     * reconfigurations and restarts, and refreshes them in the background once they get old.
      */
     static class Metadata {
         final URL ec2endpoint,s3endpoint;
+        /**
+         * When this was fetched from Eucalyptus.
+         */
+        final long timestamp;
+
+        Metadata(URL ec2endpoint, URL s3endpoint) {
+            this.ec2endpoint = ec2endpoint;
+            this.s3endpoint = s3endpoint;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis()-timestamp > MAX_AGE;
+        }
+
+        /**
+         * Gets the metadata of the given Eucalyptus.
+         *
+         * <p>
+         * If we've seen this Eucalyptus before, this returns right away (and kicks off a refresh if the data is old.)
+         * Otherwise this waits for the metadata, but no longer than {@link #TIMEOUT}.
+         */
+        static Metadata get(URL eucalyptus) throws IOException {
+            Metadata m = getCache().get(eucalyptus.toExternalForm());
+            if (m!=null) {
+                if (m.isStale())
+                    refresh(eucalyptus);
+                return m;
+            }
+
+            try {
+                return refresh(eucalyptus).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+                throw new IOException2("Failed to retrieve Eucalyptus metadata from "+eucalyptus,e.getCause());
+            } catch (TimeoutException e) {
+                throw new IOException2("Timed out retrieving Eucalyptus metadata from "+eucalyptus,e);
+            } catch (InterruptedException e) {
+                throw new IOException2("Interrupted while retrieving Eucalyptus metadata from "+eucalyptus,e);
+            }
+        }
+
+        /**
+         * Fetches the metadata in the background, unless a fetch for the same URL is already in progress.
+         */
+        private static Future<Metadata> refresh(final URL eucalyptus) {
+            final String key = eucalyptus.toExternalForm();
+            synchronized (inProgress) {
+                Future<Metadata> f = inProgress.get(key);
+                if (f!=null)    return f;
+
+                f = Computer.threadPoolForRemoting.submit(new Callable<Metadata>() {
+                    public Metadata call() throws IOException {
+                        try {
+                            Metadata m = fetch(eucalyptus);
+                            getCache().put(key, m);
+                            PluginImpl p = PluginImpl.get();
+                            if (p!=null)
+                                p.save();
+                            return m;
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to refresh Eucalyptus metadata from "+key, e);
+                            throw e;
+                        } catch (RuntimeException e) {
+                            // nobody may be waiting for this refresh, so this is the only trace of it
+                            LOGGER.log(Level.WARNING, "Failed to refresh Eucalyptus metadata from "+key, e);
+                            throw e;
+                        } finally {
+                            synchronized (inProgress) {
+                                inProgress.remove(key);
+                            }
+                        }
+                    }
+                });
+                inProgress.put(key, f);
+                return f;
+            }
+        }
 
-        Metadata(URL eucalyptus) throws IOException {
+        private static Map<String,Metadata> getCache() {
+            PluginImpl p = PluginImpl.get();
+            return p!=null ? p.getEucalyptusMetadata() : FALLBACK_CACHE;
+        }
+
+        /**
+         * Retrieves the metadata from Eucalyptus.
+         */
+        static Metadata fetch(URL eucalyptus) throws IOException {
             if (!eucalyptus.getProtocol().equals("https"))
                 throw new IOException("Expecting an HTTPS URL but got "+eucalyptus);
             URL metadataUrl = new URL(eucalyptus, "/register");
+            InputStream in = null;
             try {
                 HttpsURLConnection con = (HttpsURLConnection)metadataUrl.openConnection();
                 makeIgnoreCertificate(con);
-                Document metadata = new SAXReader().read(con.getInputStream());
-                /*
-                       Metadata, as of Eucalyptus 1.5.2, looks like this:
-
-                       <Signature>
-                         <SignedInfo>
-                           <SignatureMethod>http://www.w3.org/2001/04/xmldsig-more#hmac-sha256</SignatureMethod>
-                         </SignedInfo>
-                         <SignatureValue>62595777525d7dbba4b5f361b3e9041d3d37e92611684557e67e85a9222a3ffb  </SignatureValue>
-                         <Object>
-                          <CloudSchema>
-                         <Services type="array">
-                           <Service>
-                             <Name>ec2</Name>
-                             <EndpointUrl>http://eucalyptus.hudson-slaves.sfbay.sun.com:8773/services/Eucalyptus</EndpointUrl>
-                             <Resources type="array">
-                               ...
-                             </Resources>
-                           </Service>
-                           <Service>
-                             <Name>s3</Name>
-                             <EndpointUrl>http://eucalyptus.hudson-slaves.sfbay.sun.com:8773/services/Walrus</EndpointUrl>
-                             <Resources type="array">
-                               ...
-                             </Resources>
-                           </Service>
-                         </Services>
-                         <id>a002c56e-b994-4ed8-956b-b30eda9b6153</id>  <CloudType>eucalyptus</CloudType>
-                         <CloudVersion>1.5.2</CloudVersion>
-                         <SchemaVersion>1.0</SchemaVersion>
-                         <Description>Public cloud in the new cluster</Description>
-                       </CloudSchema>
-
-                    */
-
-                this.ec2endpoint = readURLFromMetadata(metadata, "ec2");
-                this.s3endpoint = readURLFromMetadata(metadata, "s3");
-            } catch (DocumentException e) {
+                con.setConnectTimeout((int)TIMEOUT);
+                con.setReadTimeout((int)TIMEOUT);
+                in = con.getInputStream();
+                return parse(in);
+            } catch (XMLStreamException e) {
                 throw new IOException2("Failed to parse Eucalyptus metadata at "+metadataUrl,e);
             } catch (IOException e) {
                 throw new IOException2("Failed to parse Eucalyptus metadata at "+metadataUrl,e);
             } catch (GeneralSecurityException e) {
                 throw new IOException2("Failed to parse Eucalyptus metadata at "+metadataUrl,e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        /**
+         * Picks up the endpoints in a single pass over the metadata, without building the whole tree.
+         */
+        static Metadata parse(InputStream in) throws XMLStreamException, MalformedURLException {
+            /*
+                   Metadata, as of Eucalyptus 1.5.2, looks like this:
+
+                   <Signature>
+                     <SignedInfo>
+                       <SignatureMethod>http://www.w3.org/2001/04/xmldsig-more#hmac-sha256</SignatureMethod>
+                     </SignedInfo>
+                     <SignatureValue>62595777525d7dbba4b5f361b3e9041d3d37e92611684557e67e85a9222a3ffb  </SignatureValue>
+                     <Object>
+                      <CloudSchema>
+                     <Services type="array">
+                       <Service>
+                         <Name>ec2</Name>
+                         <EndpointUrl>http://eucalyptus.hudson-slaves.sfbay.sun.com:8773/services/Eucalyptus</EndpointUrl>
+                         <Resources type="array">
+                           ...
+                         </Resources>
+                       </Service>
+                       <Service>
+                         <Name>s3</Name>
+                         <EndpointUrl>http://eucalyptus.hudson-slaves.sfbay.sun.com:8773/services/Walrus</EndpointUrl>
+                         <Resources type="array">
+                           ...
+                         </Resources>
+                       </Service>
+                     </Services>
+                     <id>a002c56e-b994-4ed8-956b-b30eda9b6153</id>  <CloudType>eucalyptus</CloudType>
+                     <CloudVersion>1.5.2</CloudVersion>
+                     <SchemaVersion>1.0</SchemaVersion>
+                     <Description>Public cloud in the new cluster</Description>
+                   </CloudSchema>
+
+                */
+            URL ec2=null, s3=null;
+            String name=null, endpoint=null;
+            int depth=0, serviceDepth=-1;
+
+            XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            try {
+                while (r.hasNext()) {
+                    int event = r.next();
+                    if (event==XMLStreamReader.START_ELEMENT) {
+                        depth++;
+                        String tag = r.getLocalName();
+                        if (tag.equals("Service")) {
+                            serviceDepth = depth;
+                            name = endpoint = null;
+                        } else if (depth==serviceDepth+1 && tag.equals("Name")) {
+                            name = r.getElementText().trim();
+                            depth--;    // getElementText() consumed the end tag
+                        } else if (depth==serviceDepth+1 && tag.equals("EndpointUrl")) {
+                            endpoint = r.getElementText().trim();
+                            depth--;
+                        }
+                    } else if (event==XMLStreamReader.END_ELEMENT) {
+                        if (depth==serviceDepth) {
+                            if ("ec2".equals(name) && endpoint!=null)   ec2 = new URL(endpoint);
+                            if ("s3".equals(name) && endpoint!=null)    s3 = new URL(endpoint);
+                            serviceDepth = -1;
+                        }
+                        depth--;
+                    }
+                }
+
+                if (ec2==null)
+                    throw new IllegalStateException("Service metadata didn't contain ec2");
+                if (s3==null)
+                    throw new IllegalStateException("Service metadata didn't contain s3");
+                return new Metadata(ec2,s3);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Malformed Eucalyptus metadata at line "+r.getLocation().getLineNumber()
+                        +" (service "+name+", endpoint "+endpoint+")", e);
+                throw e;
+            } finally {
+                r.close();
             }
         }
 
@@ -147,7 +306,7 @@ public class Eucalyptus extends EC2Cloud {
          * Configures the given {@link HttpsURLConnection} so that it'll ignore all the HTTPS certificate checks,
          * as typical Eucalyptus implementation doesn't come with a valid certificate.
          */
-        private void makeIgnoreCertificate(HttpsURLConnection con) throws NoSuchAlgorithmException, KeyManagementException {
+        private static void makeIgnoreCertificate(HttpsURLConnection con) throws NoSuchAlgorithmException, KeyManagementException {
             SSLContext sc = SSLContext.getInstance("SSL");
             TrustManager[] tma = {new X509TrustManager() {
                 public X509Certificate[] getAcceptedIssuers() {
@@ -170,11 +329,23 @@ public class Eucalyptus extends EC2Cloud {
             });
         }
 
-        private URL readURLFromMetadata(Document metadata, String serviceName) throws MalformedURLException {
-            Element e = (Element)metadata.selectSingleNode("//Service[Name/text()='" + serviceName + "']/EndpointUrl");
-            if (e==null)
-                throw new IllegalStateException("Service metadata didn't contain "+serviceName);
-            return new URL(e.getTextTrim());
-        }
+        /**
+         * Metadata older than this gets refreshed in the background.
+         */
+        static long MAX_AGE = Long.getLong(Eucalyptus.class.getName()+".metadataMaxAge", 60*60*1000L);
+
+        /**
+         * How long we are willing to wait for Eucalyptus to give us the metadata.
+         */
+        static long TIMEOUT = Long.getLong(Eucalyptus.class.getName()+".metadataTimeout", 30*1000L);
+
+        private static final Map<String,Future<Metadata>> inProgress = new HashMap<String,Future<Metadata>>();
+
+        /**
+         * Used when the plugin isn't fully up, such as in some tests.
+         */
+        private static final Map<String,Metadata> FALLBACK_CACHE = new ConcurrentHashMap<String,Metadata>();
     }
+
+    private static final Logger LOGGER = Logger.getLogger(Eucalyptus.class.getName());
 }
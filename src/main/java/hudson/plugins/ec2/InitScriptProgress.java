@@ -0,0 +1,208 @@
+package hudson.plugins.ec2;
+
+import hudson.Util;
+import hudson.model.Hudson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Session;
+
+/**
+ * Progress of the init script on a node, shown on the page of its {@link EC2Computer}.
+ *
+ * <p>
+ * Output is streamed line by line as the script produces it. Each line is timestamped and goes to the launch log,
+ * to <tt>init-script.log</tt> next to the slave log of the node, and to an in-memory buffer of the last
+ * {@link #BUFFER_LINES} lines, so that a script that prints a lot doesn't take up memory on the master.
+ */
+public final class InitScriptProgress {
+    private final String node;
+    private final PrintStream logger;
+    private final LinkedList<String> lines = new LinkedList<String>();
+    private PrintWriter file;
+    private final long started = System.currentTimeMillis();
+    private volatile long finished;
+    private volatile String status = "Starting";
+    private volatile boolean successful;
+
+    private InitScriptProgress(String node, PrintStream logger) {
+        this.node = node;
+        this.logger = logger;
+        File f = getLogFile(node);
+        try {
+            f.getParentFile().mkdirs();
+            file = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to open "+f, e);
+        }
+    }
+
+    /**
+     * Starts tracking a new run of the init script on the given node, replacing the previous one.
+     */
+    public static InitScriptProgress begin(String node, PrintStream logger) {
+        InitScriptProgress p = new InitScriptProgress(node, logger);
+        InitScriptProgress old = PROGRESS.put(node, p);
+        if (old!=null)
+            old.close();
+        return p;
+    }
+
+    /**
+     * @return null if the init script hasn't run on the node since Jenkins started.
+     */
+    public static InitScriptProgress get(String node) {
+        return PROGRESS.get(node);
+    }
+
+    /**
+     * Forgets about a node, or a machine of a build, that's gone, along with its log.
+     */
+    public static void remove(String node) {
+        InitScriptProgress p = PROGRESS.remove(node);
+        if (p!=null)
+            p.close();
+        File f = getLogFile(node);
+        if (f.delete())
+            f.getParentFile().delete();     // unless Jenkins keeps the slave log there
+    }
+
+    public static File getLogFile(String node) {
+        return new File(Hudson.getInstance().getRootDir(), "logs/slaves/"+node+"/init-script.log");
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public synchronized void println(String line) {
+        String stamped = new SimpleDateFormat("HH:mm:ss").format(new Date())+" "+line;
+        logger.println(stamped);
+        if (file!=null) {
+            file.println(stamped);
+            file.flush();
+        }
+        lines.add(stamped);
+        if (lines.size()>BUFFER_LINES)
+            lines.removeFirst();
+    }
+
+    /**
+     * Streams the output of a command that's been started on the session until it exits.
+     *
+     * @param prefix
+     *      Prepended to each line of output, to tell apart commands that run at the same time.
+     * @param timeout
+     *      How long the command may take, in milliseconds.
+     * @return
+     *      The exit status of the command, or -1 if it didn't exit in time.
+     */
+    public int waitFor(Session sess, String prefix, long timeout) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis()+timeout;
+        InputStream out = sess.getStdout();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+
+        while (true) {
+            long remaining = deadline-System.currentTimeMillis();
+            if (remaining<=0) {
+                println(prefix+"Timed out after "+Util.getTimeSpanString(timeout));
+                return -1;
+            }
+            int cond = sess.waitForCondition(ChannelCondition.STDOUT_DATA|ChannelCondition.EOF|ChannelCondition.CLOSED, remaining);
+            if ((cond&ChannelCondition.STDOUT_DATA)!=0) {
+                int n = out.read(buf, 0, Math.min(buf.length, Math.max(1, out.available())));
+                if (n<0)    break;
+                for (int i=0; i<n; i++) {
+                    if (buf[i]=='\n') {
+                        println(prefix+line.toString("UTF-8").replaceAll("\r$", ""));
+                        line.reset();
+                    } else {
+                        line.write(buf[i]);
+                    }
+                }
+                continue;
+            }
+            if ((cond&(ChannelCondition.EOF|ChannelCondition.CLOSED))!=0)
+                break;
+        }
+        if (line.size()>0)
+            println(prefix+line.toString("UTF-8"));
+
+        // the exit status can arrive well after EOF
+        long remaining = Math.max(deadline-System.currentTimeMillis(), EXIT_STATUS_GRACE);
+        sess.waitForCondition(ChannelCondition.EXIT_STATUS, remaining);
+        Integer r = sess.getExitStatus();
+        if (r==null) {
+            println(prefix+"No exit status received within "+Util.getTimeSpanString(remaining));
+            return -1;
+        }
+        return r;
+    }
+
+    public void finish(boolean successful) {
+        this.successful = successful;
+        this.finished = System.currentTimeMillis();
+        this.status = successful ? "Done" : "Failed";
+        close();
+    }
+
+    private synchronized void close() {
+        if (file!=null) {
+            file.close();
+            file = null;
+        }
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public boolean isRunning() {
+        return finished==0;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    public String getDurationString() {
+        return Util.getTimeSpanString((isRunning() ? System.currentTimeMillis() : finished)-started);
+    }
+
+    /**
+     * The last {@link #BUFFER_LINES} lines of output.
+     */
+    public synchronized List<String> getLines() {
+        return new ArrayList<String>(lines);
+    }
+
+    private static final Map<String,InitScriptProgress> PROGRESS = new ConcurrentHashMap<String,InitScriptProgress>();
+
+    public static int BUFFER_LINES = Integer.getInteger(InitScriptProgress.class.getName()+".bufferLines", 200);
+
+    private static final long EXIT_STATUS_GRACE = 30*1000L;
+
+    private static final Logger LOGGER = Logger.getLogger(InitScriptProgress.class.getName());
+}
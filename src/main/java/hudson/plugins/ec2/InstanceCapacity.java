@@ -0,0 +1,173 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Hudson;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+
+/**
+ * Hardware of an EC2 instance type, which determines how many executors a slave gets.
+ *
+ * <p>
+ * The table ships with the plugin as <tt>instance-types.csv</tt>, and sites can add instance types or
+ * correct the numbers by putting rows in the same format into <tt>$JENKINS_HOME/ec2-instance-types.csv</tt>.
+ *
+ * @see Policy
+ */
+public final class InstanceCapacity {
+    /**
+     * Instance type name as used by the EC2 API, such as "m1.large".
+     */
+    public final String type;
+    public final int vcpus;
+    public final double memoryGiB;
+    /**
+     * EC2 compute units, Amazon's measure of the compute throughput.
+     */
+    public final double ecus;
+    /**
+     * Network performance class, such as "moderate" or "10-gigabit".
+     */
+    public final String network;
+
+    public InstanceCapacity(String type, int vcpus, double memoryGiB, double ecus, String network) {
+        this.type = type;
+        this.vcpus = vcpus;
+        this.memoryGiB = memoryGiB;
+        this.ecus = ecus;
+        this.network = network;
+    }
+
+    /**
+     * How to translate the hardware into the number of executors.
+     */
+    public enum Policy {
+        /**
+         * One executor per EC2 compute unit. This is what we've always done.
+         */
+        ECU,
+        /**
+         * One executor per virtual CPU.
+         */
+        PER_VCPU,
+        /**
+         * One executor per GiB of memory, for memory bound builds.
+         */
+        PER_GB;
+
+        /**
+         * @param factor
+         *      Executors per unit, for example 2 with {@link #PER_VCPU} gives two executors per CPU.
+         */
+        public int getNumExecutors(InstanceCapacity c, double factor) {
+            double units;
+            switch (this) {
+            case PER_VCPU:  units = c.vcpus;      break;
+            case PER_GB:    units = c.memoryGiB;  break;
+            default:        units = c.ecus;       break;
+            }
+            return Math.max(1, (int)Math.floor(units*factor));
+        }
+    }
+
+    /**
+     * Computes the number of executors for the given instance type.
+     *
+     * @param policy
+     *      null to use the {@linkplain Policy#ECU default}.
+     * @param factor
+     *      null or blank to use 1.
+     */
+    public static int getNumExecutors(String type, Policy policy, String factor) {
+        InstanceCapacity c = get(type);
+        if (c==null) {
+            LOGGER.fine("No capacity information for "+type+", defaulting to one executor");
+            return 1;
+        }
+        double f = 1;
+        try {
+            if (factor!=null && factor.trim().length()>0)
+                f = Double.parseDouble(factor.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.info("Malformed executors per unit value: "+factor);
+        }
+        return (policy!=null ? policy : Policy.ECU).getNumExecutors(c, f);
+    }
+
+    public static int getNumExecutors(InstanceType type, Policy policy, String factor) {
+        return getNumExecutors(type.toString(), policy, factor);
+    }
+
+    /**
+     * Looks up the capacity of the given instance type.
+     *
+     * @return null if we don't know about this instance type.
+     */
+    public static InstanceCapacity get(String type) {
+        return getTable().get(type);
+    }
+
+    private static synchronized Map<String,InstanceCapacity> getTable() {
+        File override = getOverrideFile();
+        long timestamp = override!=null && override.exists() ? override.lastModified() : 0;
+        if (table==null || timestamp!=tableTimestamp) {
+            Map<String,InstanceCapacity> t = new HashMap<String,InstanceCapacity>();
+            try {
+                load(InstanceCapacity.class.getResourceAsStream("instance-types.csv"), t);
+                if (timestamp!=0)
+                    load(new FileInputStream(override), t);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the instance type table", e);
+            }
+            table = t;
+            tableTimestamp = timestamp;
+        }
+        return table;
+    }
+
+    private static File getOverrideFile() {
+        Hudson h = Hudson.getInstance();
+        return h!=null ? new File(h.getRootDir(), "ec2-instance-types.csv") : null;
+    }
+
+    /*package*/ static void load(InputStream in, Map<String,InstanceCapacity> table) throws IOException {
+        try {
+            BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while ((line=r.readLine())!=null) {
+                line = line.trim();
+                if (line.length()==0 || line.startsWith("#"))
+                    continue;
+                String[] tokens = line.split("\\s*,\\s*");
+                try {
+                    InstanceCapacity c = new InstanceCapacity(tokens[0], Integer.parseInt(tokens[1]),
+                            Double.parseDouble(tokens[2]), Double.parseDouble(tokens[3]),
+                            tokens.length>4 ? tokens[4] : null);
+                    table.put(c.type, c);
+                } catch (RuntimeException e) {
+                    // NumberFormatException or ArrayIndexOutOfBoundsException
+                    LOGGER.warning("Malformed instance type entry: "+line);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static Map<String,InstanceCapacity> table;
+    private static long tableTimestamp;
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceCapacity.class.getName());
+}
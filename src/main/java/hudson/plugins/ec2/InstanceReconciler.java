@@ -0,0 +1,148 @@
+package hudson.plugins.ec2;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.util.LogTaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Brings the {@link EC2Slave}s persisted in Jenkins in line with what's actually on EC2.
+ *
+ * <p>
+ * Without this, after a restart every node lazily describes its own instance, and the launchers
+ * and retention strategies all hit EC2 at the same moment. Instead we describe all the instances
+ * we own in one go, then:
+ * <ul>
+ * <li>drop the nodes whose instances are gone,
+ * <li>adopt running instances that we've launched but that have no node (like {@link EC2Cloud#doAttach}), and
+ * <li>hand the descriptions to the surviving nodes, so that the launchers start off from them.
+ * </ul>
+ */
+public class InstanceReconciler {
+    private final EC2Cloud cloud;
+
+    public InstanceReconciler(EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Runs once the nodes are loaded, after bringing back the ones in {@link NodeJournal}.
+     * Nodes always talk to {@link EC2Cloud#get()}, so that's the only cloud
+     * whose instances we can safely reconcile against.
+     */
+    @Initializer(after=InitMilestone.JOB_LOADED)
+    public static void reconcileOnStartup() {
+        try {
+            NodeRegistrar.get().restore();
+            TemplateSnapshot.prune();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to restore EC2 nodes", e);
+        }
+
+        EC2Cloud cloud = EC2Cloud.get();
+        if (cloud==null)    return;
+        try {
+            new InstanceReconciler(cloud).reconcile();
+        } catch (AmazonClientException e) {
+            // leave everything as is. nodes will fetch their own data lazily like they always did
+            LOGGER.log(Level.WARNING, "Failed to reconcile EC2 nodes with "+cloud.name, e);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to reconcile EC2 nodes with "+cloud.name, e);
+        }
+    }
+
+    public void reconcile() throws AmazonClientException, IOException {
+        Hudson h = Hudson.getInstance();
+
+        Map<String,Instance> instances = new HashMap<String,Instance>();
+        for (Instance i : cloud.describeSlaveInstances())
+            instances.put(i.getInstanceId(), i);
+
+        // nodes launched before we started tagging instances won't show up above, so look for them explicitly
+        Set<String> untagged = new HashSet<String>();
+        for (Node n : h.getNodes())
+            if (n instanceof EC2Slave && !instances.containsKey(n.getNodeName()))
+                untagged.add(n.getNodeName());
+        for (Instance i : cloud.describeInstances(untagged))
+            instances.put(i.getInstanceId(), i);
+
+        List<Node> added = new ArrayList<Node>();
+        List<Node> removed = new ArrayList<Node>();
+        Set<String> known = new HashSet<String>();
+
+        for (Node n : h.getNodes()) {
+            if (n instanceof EC2Slave) {
+                EC2Slave s = (EC2Slave) n;
+                Instance i = instances.get(s.getInstanceId());
+                if (i==null || isGone(i)) {
+                    LOGGER.info("Dropping "+s.getInstanceId()+" as the instance no longer exists");
+                    removed.add(n);
+                    EC2Slave.forget(s.getInstanceId());
+                    continue;
+                }
+                s.seedInstanceDescription(i);
+                known.add(s.getInstanceId());
+                track(i);
+            }
+        }
+
+        LogTaskListener listener = new LogTaskListener(LOGGER, Level.INFO);
+        for (Instance i : instances.values()) {
+            if (known.contains(i.getInstanceId()) || !isOwned(i))
+                continue;
+            if (InstanceState.find(i.getState().getName())!=InstanceState.RUNNING)
+                continue;   // stopped ones are slaves that were terminated with "stop on terminate"
+            SlaveTemplate t = cloud.getTemplateFor(i);
+            if (t==null)
+                continue;
+            added.add(t.attach(i, listener));
+            CapacityLedger.get().track(i.getInstanceId(), cloud, t);
+        }
+
+        // one update for the whole lot, instead of rewriting the configuration per node
+        NodeRegistrar.get().update(added, removed);
+        LOGGER.info(String.format("Reconciled %d EC2 instances with %s: %d nodes dropped, %d adopted",
+                instances.size(), cloud.name, removed.size(), added.size()));
+    }
+
+    /**
+     * Counts the instance of a surviving node against the quotas of the template it most likely came from.
+     */
+    private void track(Instance i) {
+        InstanceState s = InstanceState.find(i.getState().getName());
+        if (s!=InstanceState.PENDING && s!=InstanceState.RUNNING)
+            return;     // stopped ones don't count against the cap
+        SlaveTemplate t = cloud.getTemplateFor(i);
+        if (t!=null)
+            CapacityLedger.get().track(i.getInstanceId(), cloud, t);
+    }
+
+    private boolean isOwned(Instance i) {
+        for (Tag t : i.getTags())
+            if (EC2Cloud.SLAVE_TAG.equals(t.getKey()) && cloud.getOwnerId().equals(t.getValue()))
+                return true;
+        return false;
+    }
+
+    private static boolean isGone(Instance i) {
+        InstanceState s = InstanceState.find(i.getState().getName());
+        return s==InstanceState.SHUTTING_DOWN || s==InstanceState.TERMINATED;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceReconciler.class.getName());
+}
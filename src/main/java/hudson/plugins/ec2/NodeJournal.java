@@ -0,0 +1,157 @@
+package hudson.plugins.ec2;
+
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Append-only record of the {@link EC2Slave}s that exist, which stand in for the node configuration
+ * that Jenkins would otherwise rewrite in full every time a slave comes or goes.
+ *
+ * <p>
+ * Every line is either <tt>+name base64(xml)</tt> for a node that got added or reconfigured, or <tt>-name</tt>
+ * for a node that's gone. Replaying the lines gives the nodes there are. Once the dead records outnumber
+ * the live ones, the file is rewritten with just the live ones.
+ */
+public final class NodeJournal {
+    private final File file;
+    /**
+     * Serialized form of the live nodes, keyed by the node name.
+     */
+    private final Map<String,String> live = new LinkedHashMap<String,String>();
+    private int records;
+    private boolean loaded;
+
+    public NodeJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replays the journal.
+     *
+     * @return
+     *      Serialized nodes keyed by their names, in the order they were first added.
+     */
+    public synchronized Map<String,String> load() throws IOException {
+        live.clear();
+        records = 0;
+        if (file.exists()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line=r.readLine())!=null) {
+                    if (line.length()>1)
+                        replay(line);
+                }
+            } finally {
+                IOUtils.closeQuietly(r);
+            }
+        }
+        loaded = true;
+        return Collections.unmodifiableMap(new LinkedHashMap<String,String>(live));
+    }
+
+    private void replay(String line) throws IOException {
+        records++;
+        if (line.charAt(0)=='-') {
+            live.remove(line.substring(1));
+            return;
+        }
+        int idx = line.indexOf(' ');
+        if (line.charAt(0)!='+' || idx<0) {
+            // most likely the last line, cut short by a crash
+            LOGGER.warning("Ignoring a malformed record in "+file);
+            return;
+        }
+        live.put(line.substring(1, idx), new String(Base64.decodeBase64(line.substring(idx+1).getBytes("US-ASCII")), "UTF-8"));
+    }
+
+    /**
+     * Appends the changes of one batch in a single write.
+     *
+     * @param added
+     *      Serialized nodes that got added or replaced, keyed by their names.
+     * @param removed
+     *      Names of the nodes that are gone.
+     */
+    public synchronized void append(Map<String,String> added, Collection<String> removed) throws IOException {
+        if (added.isEmpty() && removed.isEmpty())
+            return;
+        if (!loaded)
+            load();
+
+        StringBuilder buf = new StringBuilder();
+        for (String name : removed) {
+            buf.append('-').append(name).append('\n');
+            live.remove(name);
+        }
+        for (Map.Entry<String,String> e : added.entrySet()) {
+            buf.append(record(e.getKey(), e.getValue()));
+            live.put(e.getKey(), e.getValue());
+        }
+        records += added.size()+removed.size();
+
+        if (records > 2*live.size()+COMPACT_SLACK) {
+            compact();
+            return;
+        }
+
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(buf.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Rewrites the journal with just the live nodes.
+     */
+    public synchronized void compact() throws IOException {
+        if (!loaded)
+            load();
+        file.getParentFile().mkdirs();
+        AtomicFileWriter w = new AtomicFileWriter(file);
+        try {
+            for (Map.Entry<String,String> e : live.entrySet())
+                w.write(record(e.getKey(), e.getValue()));
+            w.commit();
+        } finally {
+            w.close();
+        }
+        records = live.size();
+    }
+
+    /**
+     * Number of records in the file, live or not.
+     */
+    /*package*/ synchronized int getRecordCount() {
+        return records;
+    }
+
+    private static String record(String name, String xml) throws IOException {
+        return '+'+name+' '+new String(Base64.encodeBase64(xml.getBytes("UTF-8")), "US-ASCII")+'\n';
+    }
+
+    /**
+     * How many dead records we put up with before compacting, on top of as many as there are live ones.
+     */
+    public static int COMPACT_SLACK = Integer.getInteger(NodeJournal.class.getName()+".compactSlack", 100);
+
+    private static final Logger LOGGER = Logger.getLogger(NodeJournal.class.getName());
+}
@@ -0,0 +1,233 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Messages;
+import hudson.model.Node;
+import hudson.slaves.OfflineCause;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adds and removes {@link EC2Slave}s in batches.
+ *
+ * <p>
+ * {@link Hudson#addNode(Node)} and {@link Hudson#removeNode(Node)} rewrite the whole node configuration under
+ * the global lock for every single node, which hurts when dozens of slaves come and go at once.
+ * Instead, the first caller waits {@link #BATCH_MILLIS} for others to join, then applies the whole lot with one
+ * {@link Hudson#setNodes(List)}. {@link EC2Slave}s are {@linkplain hudson.slaves.EphemeralNode ephemeral},
+ * so they aren't part of that configuration anyway; they're recorded in the {@link NodeJournal} instead,
+ * and {@linkplain #restore() restored} from there when Jenkins starts.
+ */
+public final class NodeRegistrar {
+    private static final class Batch {
+        private final Map<String,Node> added = new LinkedHashMap<String,Node>();
+        private final Map<String,Node> removed = new LinkedHashMap<String,Node>();
+        private boolean done;
+        private IOException failure;
+    }
+
+    private Batch pending;
+    private NodeJournal journal;
+
+    /**
+     * Adds the node and returns once it's in place, so that {@link Node#toComputer()} works.
+     */
+    public void add(Node n) throws IOException, InterruptedException {
+        submit(n, true);
+    }
+
+    /**
+     * Removes the node and returns once it's gone.
+     */
+    public void remove(Node n) throws IOException, InterruptedException {
+        submit(n, false);
+    }
+
+    private void submit(Node n, boolean add) throws IOException, InterruptedException {
+        if (Thread.holdsLock(Hudson.getInstance())) {
+            // followers wait for the leader, who needs this lock, so don't wait for anyone
+            update(add ? Collections.singleton(n) : Collections.<Node>emptySet(),
+                   add ? Collections.<Node>emptySet() : Collections.singleton(n));
+            return;
+        }
+
+        Batch b;
+        boolean leader = false;
+        synchronized (this) {
+            if (pending==null) {
+                pending = new Batch();
+                leader = true;
+            }
+            b = pending;
+            if (add) {
+                b.removed.remove(n.getNodeName());
+                b.added.put(n.getNodeName(), n);
+            } else {
+                b.added.remove(n.getNodeName());
+                b.removed.put(n.getNodeName(), n);
+            }
+        }
+
+        if (leader) {
+            try {
+                Thread.sleep(BATCH_MILLIS);
+            } finally {
+                synchronized (this) {
+                    pending = null;
+                }
+                try {
+                    update(b.added.values(), b.removed.values());
+                } catch (IOException e) {
+                    b.failure = e;
+                } catch (RuntimeException e) {
+                    b.failure = new IOException("Failed to update the nodes");
+                    b.failure.initCause(e);
+                }
+                synchronized (b) {
+                    b.done = true;
+                    b.notifyAll();
+                }
+            }
+        } else {
+            synchronized (b) {
+                while (!b.done)
+                    b.wait();
+            }
+        }
+        if (b.failure!=null) {
+            IOException e = new IOException("Failed to "+(add?"add ":"remove ")+n.getNodeName());
+            e.initCause(b.failure);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds and removes nodes with one update of the node list and one journal write.
+     */
+    public void update(Collection<? extends Node> added, Collection<? extends Node> removed) throws IOException {
+        if (added.isEmpty() && removed.isEmpty())
+            return;
+        Hudson h = Hudson.getInstance();
+
+        for (Node n : removed) {
+            Computer c = n.toComputer();
+            if (c!=null)
+                c.disconnect(OfflineCause.create(Messages._Hudson_NodeBeingRemoved()));
+        }
+
+        Set<String> names = new HashSet<String>();
+        for (Node n : added)    names.add(n.getNodeName());
+        for (Node n : removed)  names.add(n.getNodeName());
+
+        Map<String,String> journaled = new LinkedHashMap<String,String>();
+        List<String> gone = new ArrayList<String>();
+        synchronized (h) {
+            List<Node> nodes = new ArrayList<Node>(h.getNodes());
+            for (Iterator<Node> itr = nodes.iterator(); itr.hasNext();)
+                if (names.contains(itr.next().getNodeName()))
+                    itr.remove();
+            nodes.addAll(added);
+
+            for (Node n : removed)
+                if (n instanceof EC2Slave)
+                    gone.add(n.getNodeName());
+            for (Node n : added)
+                if (n instanceof EC2Slave)
+                    journaled.put(n.getNodeName(), Hudson.XSTREAM.toXML(n));
+
+            try {
+                h.setNodes(nodes);
+            } finally {
+                // the node list has changed in memory even if saving the rest of it failed
+                getJournal().append(journaled, gone);
+            }
+        }
+        LOGGER.fine("Added "+added.size()+" and removed "+removed.size()+" nodes in one update");
+    }
+
+    /**
+     * Records a new configuration of a node that's already there.
+     */
+    public void journal(EC2Slave n) {
+        try {
+            getJournal().append(Collections.singletonMap(n.getNodeName(), Hudson.XSTREAM.toXML(n)), Collections.<String>emptySet());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record the configuration of "+n.getNodeName(), e);
+        }
+    }
+
+    /**
+     * Brings back the nodes recorded in the journal, and records the {@link EC2Slave}s that Jenkins loaded
+     * from its own configuration, which it won't save there anymore.
+     */
+    public void restore() throws IOException {
+        Hudson h = Hudson.getInstance();
+        NodeJournal journal = getJournal();
+        Map<String,String> recorded = journal.load();
+
+        Set<String> existing = new HashSet<String>();
+        Map<String,String> legacy = new LinkedHashMap<String,String>();
+        for (Node n : h.getNodes()) {
+            existing.add(n.getNodeName());
+            if (n instanceof EC2Slave && !recorded.containsKey(n.getNodeName()))
+                legacy.put(n.getNodeName(), Hudson.XSTREAM.toXML(n));
+        }
+
+        List<Node> restored = new ArrayList<Node>();
+        for (Map.Entry<String,String> e : recorded.entrySet()) {
+            if (existing.contains(e.getKey()))
+                continue;
+            try {
+                restored.add((Node)Hudson.XSTREAM.fromXML(e.getValue()));
+            } catch (RuntimeException x) {
+                // XStreamException, ClassCastException, or whatever readResolve throws
+                LOGGER.log(Level.WARNING, "Failed to restore the node "+e.getKey(), x);
+            }
+        }
+
+        if (!restored.isEmpty()) {
+            synchronized (h) {
+                List<Node> nodes = new ArrayList<Node>(h.getNodes());
+                nodes.addAll(restored);
+                h.setNodes(nodes);
+            }
+        }
+        journal.append(legacy, Collections.<String>emptySet());
+        journal.compact();
+        LOGGER.info("Restored "+restored.size()+" EC2 nodes from "+FILE_NAME+", migrated "+legacy.size());
+    }
+
+    private synchronized NodeJournal getJournal() {
+        if (journal==null)
+            journal = new NodeJournal(new File(Hudson.getInstance().getRootDir(), FILE_NAME));
+        return journal;
+    }
+
+    public static NodeRegistrar get() {
+        return INSTANCE;
+    }
+
+    private static final NodeRegistrar INSTANCE = new NodeRegistrar();
+
+    private static final String FILE_NAME = "ec2-nodes.journal";
+
+    /**
+     * How long the first of a burst of node changes waits for the rest.
+     */
+    public static int BATCH_MILLIS = Integer.getInteger(NodeRegistrar.class.getName()+".batchMillis", 200);
+
+    private static final Logger LOGGER = Logger.getLogger(NodeRegistrar.class.getName());
+}
@@ -0,0 +1,226 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.TimeUnit2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DeletePlacementGroupRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * Periodically looks for instances that we've launched but that nobody is using any more, and gets rid of them.
+ *
+ * <p>
+ * Instances leak when {@link EC2Slave#terminate()} fails to talk to EC2, or when a build dies between
+ * {@link StartEc2Builder} launching machines and tearing them down. They keep running with no Jenkins node,
+ * cost money, and count against {@link EC2Cloud#instanceCap}.
+ *
+ * <p>
+ * An instance is considered leaked when it's been up for longer than {@link #GRACE_MINUTES} and
+ * <ul>
+ * <li>it's tagged with {@link EC2Cloud#SLAVE_TAG} by this cloud of this Jenkins, but there's no node for it, or
+ * <li>it's tagged with {@link EC2Cloud#BUILD_TAG} by this cloud of this Jenkins, but the build holding it is over.
+ * </ul>
+ * Placement groups created for a single build are deleted once the build is over and they're empty.
+ *
+ * <p>
+ * Other Jenkins masters may share the AWS account, so an instance whose lease we can't make sense of, or whose
+ * project we don't have, isn't ours and is left alone.
+ */
+@Extension
+public class OrphanedInstanceReaper extends AsyncPeriodicWork {
+    private volatile int lastReclaimed;
+    private volatile int totalReclaimed;
+
+    public OrphanedInstanceReaper() {
+        super("EC2 orphaned instance reaper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit2.MINUTES.toMillis(10);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        EC2Cloud cloud = EC2Cloud.get();
+        if (cloud==null)    return;
+
+        try {
+            List<String> terminate = new ArrayList<String>();
+            List<String> stop = new ArrayList<String>();
+            long cutoff = System.currentTimeMillis()-TimeUnit2.MINUTES.toMillis(GRACE_MINUTES);
+
+            for (Instance i : cloud.describeOwnedInstances()) {
+                if (i.getLaunchTime()!=null && i.getLaunchTime().getTime()>cutoff)
+                    continue;   // may still be on its way to become a node
+                if (!isLeaked(cloud, i))
+                    continue;
+
+                listener.getLogger().println("Reclaiming leaked instance "+i.getInstanceId());
+                SlaveTemplate t = cloud.getTemplate(i.getImageId());
+                if (t!=null && t.stopOnTerminate)
+                    stop.add(i.getInstanceId());
+                else
+                    terminate.add(i.getInstanceId());
+            }
+
+            AmazonEC2 ec2 = cloud.connect();
+            for (List<String> batch : batches(terminate)) {
+                ec2.terminateInstances(new TerminateInstancesRequest(batch));
+                release(batch);
+            }
+            for (List<String> batch : batches(stop)) {
+                ec2.stopInstances(new StopInstancesRequest(batch));
+                release(batch);
+            }
+
+            lastReclaimed = terminate.size()+stop.size();
+            totalReclaimed += lastReclaimed;
+            if (lastReclaimed>0)
+                listener.getLogger().println("Reclaimed "+lastReclaimed+" leaked instances ("+totalReclaimed+" since startup)");
+        } catch (AmazonClientException e) {
+            e.printStackTrace(listener.error("Failed to reclaim leaked EC2 instances"));
+        }
+
+        try {
+            deletePlacementGroups(cloud, listener);
+        } catch (AmazonClientException e) {
+            e.printStackTrace(listener.error("Failed to delete the placement groups of past builds"));
+        }
+    }
+
+    /**
+     * Deletes the placement groups of builds that are over, once their instances are gone,
+     * as there's a limit to how many groups an account can have.
+     */
+    private void deletePlacementGroups(EC2Cloud cloud, TaskListener listener) throws AmazonClientException, IOException {
+        Map<String,String> groups = PluginImpl.get().getBuildPlacementGroups();
+        if (groups.isEmpty())
+            return;
+
+        AmazonEC2 ec2 = cloud.connect();
+        boolean changed = false;
+        for (Map.Entry<String,String> e : groups.entrySet()) {
+            if (isLeaseActive(cloud.getOwnerId(), e.getValue()))
+                continue;
+            DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(
+                    new Filter("placement-group-name").withValues(e.getKey()),
+                    new Filter("instance-state-name").withValues("pending", "running", "shutting-down", "stopping", "stopped"));
+            if (!ec2.describeInstances(request).getReservations().isEmpty())
+                continue;   // not empty yet, try again next time
+
+            try {
+                ec2.deletePlacementGroup(new DeletePlacementGroupRequest(e.getKey()));
+                listener.getLogger().println("Deleted placement group "+e.getKey());
+            } catch (AmazonServiceException x) {
+                if (!"InvalidPlacementGroup.Unknown".equals(x.getErrorCode())) {
+                    listener.getLogger().println("Failed to delete placement group "+e.getKey()+": "+x.getMessage());
+                    continue;
+                }
+                // deleted by someone else
+            }
+            groups.remove(e.getKey());
+            changed = true;
+        }
+        if (changed)
+            PluginImpl.get().save();
+    }
+
+    private static void release(List<String> instanceIds) {
+        for (String id : instanceIds)
+            EC2Slave.forget(id);
+    }
+
+    private boolean isLeaked(EC2Cloud cloud, Instance i) {
+        for (Tag t : i.getTags()) {
+            if (EC2Cloud.SLAVE_TAG.equals(t.getKey()))
+                return cloud.getOwnerId().equals(t.getValue()) && Hudson.getInstance().getNode(i.getInstanceId())==null;
+            if (EC2Cloud.BUILD_TAG.equals(t.getKey()))
+                return !isLeaseActive(cloud.getOwnerId(), t.getValue());
+        }
+        return false;
+    }
+
+    private static List<List<String>> batches(List<String> ids) {
+        List<List<String>> r = new ArrayList<List<String>>();
+        for (int i=0; i<ids.size(); i+=BATCH_SIZE)
+            r.add(ids.subList(i, Math.min(ids.size(), i+BATCH_SIZE)));
+        return r;
+    }
+
+    /**
+     * Number of instances reclaimed in the last run.
+     */
+    public int getLastReclaimed() {
+        return lastReclaimed;
+    }
+
+    /**
+     * Number of instances reclaimed since Jenkins started.
+     */
+    public int getTotalReclaimed() {
+        return totalReclaimed;
+    }
+
+    /**
+     * Identifies the build that holds an instance launched by {@link StartEc2Builder}, and the cloud that launched it.
+     */
+    public static String leaseOf(EC2Cloud cloud, AbstractBuild<?,?> build) {
+        return cloud.getOwnerId()+':'+build.getProject().getFullName()+"#"+build.getNumber();
+    }
+
+    /**
+     * Is the build identified by {@link #leaseOf(EC2Cloud, AbstractBuild)} still running?
+     *
+     * @param owner
+     *      {@link EC2Cloud#getOwnerId()} of the cloud asking. Leases of other owners are always active.
+     */
+    /*package*/ static boolean isLeaseActive(String owner, String lease) {
+        if (!lease.startsWith(owner+':'))
+            return true;    // not ours to judge
+        String build = lease.substring(owner.length()+1);
+        int idx = build.lastIndexOf('#');
+        if (idx<0)  return true;
+        if (build.substring(0,idx).equals(AmiBaker.LEASE))
+            return AmiBaker.isBaking(lease);
+        AbstractProject<?,?> p = Hudson.getInstance().getItemByFullName(build.substring(0,idx), AbstractProject.class);
+        if (p==null)    return true;    // deleted, or renamed under a running build, so we can't tell
+        try {
+            AbstractBuild<?,?> b = p.getBuildByNumber(Integer.parseInt(build.substring(idx+1)));
+            return b!=null && b.isBuilding();
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    public static OrphanedInstanceReaper get() {
+        return PeriodicWork.all().get(OrphanedInstanceReaper.class);
+    }
+
+    /**
+     * How long an instance is left alone after its launch, so that we don't race with
+     * provisioning that's still in progress.
+     */
+    public static int GRACE_MINUTES = Integer.getInteger(OrphanedInstanceReaper.class.getName()+".graceMinutes", 30);
+
+    private static final int BATCH_SIZE = 100;
+}
@@ -0,0 +1,218 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Hudson;
+import hudson.model.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Subnet;
+
+/**
+ * Decides which availability zone and subnet each launch goes to, when a {@link SlaveTemplate}
+ * lists more than one.
+ *
+ * <p>
+ * Pinning every launch to one zone and subnet means that a large burst exhausts the IP addresses of the subnet
+ * or the capacity of the zone, and that a single zone outage takes out the whole fleet. So for each launch we
+ * rank the candidates:
+ * <ol>
+ * <li>zones that recently ran out of capacity for the instance type go last (see {@link CapacityFailureTracker}),
+ * <li>then the zone where we have the fewest nodes goes first,
+ * <li>then the subnet with the most free IP addresses.
+ * </ol>
+ * Subnets with no free addresses left are skipped altogether. Subnet data comes from a single
+ * describeSubnets call per template, which we reuse for {@link #SUBNET_CACHE_PERIOD} ms.
+ */
+public final class PlacementPlanner {
+    /**
+     * Instance ID to zone of instances we've launched and that may not be nodes yet.
+     */
+    private final Map<String,Launch> recentLaunches = new HashMap<String,Launch>();
+    /**
+     * Subnet lists of templates, keyed by the configured subnet IDs.
+     */
+    private final Map<String,SubnetCache> subnets = new HashMap<String,SubnetCache>();
+
+    private static final class Launch {
+        final String zone;
+        final long timestamp = System.currentTimeMillis();
+
+        Launch(String zone) {
+            this.zone = zone;
+        }
+    }
+
+    private static final class SubnetCache {
+        final long timestamp = System.currentTimeMillis();
+        final Map<String,Subnet> subnets = new HashMap<String,Subnet>();
+    }
+
+    /**
+     * Where to launch an instance.
+     */
+    public static final class Choice {
+        /**
+         * Null to let EC2 pick.
+         */
+        public final String zone;
+        /**
+         * Null when launching outside VPC.
+         */
+        public final String subnetId;
+
+        Choice(String zone, String subnetId) {
+            this.zone = zone;
+            this.subnetId = subnetId;
+        }
+
+        @Override
+        public String toString() {
+            return subnetId!=null ? subnetId+" ("+zone+")" : String.valueOf(zone);
+        }
+    }
+
+    /**
+     * Ranks the places the given template can launch into, the best first.
+     *
+     * @return never empty.
+     */
+    public List<Choice> rank(SlaveTemplate t, AmazonEC2 ec2) throws AmazonClientException {
+        List<String> subnetIds = t.getSubnetIds();
+        List<Choice> choices = new ArrayList<Choice>();
+        final Map<String,Integer> freeIps = new HashMap<String,Integer>();
+
+        if (!subnetIds.isEmpty()) {
+            for (Subnet s : getSubnets(subnetIds, ec2).values()) {
+                Integer free = s.getAvailableIpAddressCount();
+                if (free!=null && free<=0)
+                    continue;
+                choices.add(new Choice(s.getAvailabilityZone(), s.getSubnetId()));
+                freeIps.put(s.getSubnetId(), free!=null ? free : Integer.MAX_VALUE);
+            }
+            if (choices.isEmpty()) {
+                // we don't know any better. let EC2 tell the user what's wrong
+                for (String id : subnetIds)
+                    choices.add(new Choice(null, id));
+                return choices;
+            }
+        } else {
+            for (String z : t.getZones())
+                choices.add(new Choice(z, null));
+            if (choices.isEmpty())
+                return Collections.singletonList(new Choice(null, null));
+        }
+
+        final Map<String,Integer> distribution = getDistribution();
+        final String type = t.type.toString();
+        final CapacityFailureTracker tracker = CapacityFailureTracker.get();
+
+        Collections.sort(choices, new Comparator<Choice>() {
+            public int compare(Choice a, Choice b) {
+                boolean x = tracker.isConstrained(type, a.zone), y = tracker.isConstrained(type, b.zone);
+                if (x!=y)   return x ? 1 : -1;
+                int d = count(a)-count(b);
+                if (d!=0)   return d;
+                return free(b)<free(a) ? -1 : free(b)>free(a) ? 1 : 0;
+            }
+
+            private int count(Choice c) {
+                Integer n = distribution.get(c.zone);
+                return n!=null ? n : 0;
+            }
+
+            private int free(Choice c) {
+                Integer n = c.subnetId!=null ? freeIps.get(c.subnetId) : null;
+                return n!=null ? n : 0;
+            }
+        });
+        LOGGER.fine("Placement preference for "+t.getDisplayName()+": "+choices);
+        return choices;
+    }
+
+    /**
+     * Records a successful launch, so that the next launch in the same burst goes elsewhere
+     * even before this one becomes a node.
+     */
+    public synchronized void recordLaunch(String instanceId, Choice c) {
+        recentLaunches.put(instanceId, new Launch(c.zone));
+        if (c.subnetId!=null) {
+            for (SubnetCache sc : subnets.values()) {
+                Subnet s = sc.subnets.get(c.subnetId);
+                if (s!=null && s.getAvailableIpAddressCount()!=null)
+                    s.setAvailableIpAddressCount(s.getAvailableIpAddressCount()-1);
+            }
+        }
+    }
+
+    /**
+     * Forgets what we know about the subnet, when EC2 tells us it's out of addresses.
+     */
+    public synchronized void recordSubnetExhausted(String subnetId) {
+        for (SubnetCache sc : subnets.values()) {
+            Subnet s = sc.subnets.get(subnetId);
+            if (s!=null)
+                s.setAvailableIpAddressCount(0);
+        }
+    }
+
+    private synchronized Map<String,Subnet> getSubnets(List<String> ids, AmazonEC2 ec2) throws AmazonClientException {
+        String key = ids.toString();
+        SubnetCache sc = subnets.get(key);
+        if (sc==null || System.currentTimeMillis()-sc.timestamp>SUBNET_CACHE_PERIOD) {
+            sc = new SubnetCache();
+            DescribeSubnetsRequest request = new DescribeSubnetsRequest().withFilters(new Filter("subnet-id").withValues(ids));
+            for (Subnet s : ec2.describeSubnets(request).getSubnets())
+                sc.subnets.put(s.getSubnetId(), s);
+            subnets.put(key, sc);
+        }
+        return sc.subnets;
+    }
+
+    /**
+     * Number of our nodes (and recent launches) per zone.
+     */
+    private synchronized Map<String,Integer> getDistribution() {
+        Map<String,String> zones = new HashMap<String,String>();
+
+        long cutoff = System.currentTimeMillis()-RECENT_LAUNCH_PERIOD;
+        for (Iterator<Launch> itr = recentLaunches.values().iterator(); itr.hasNext(); )
+            if (itr.next().timestamp<cutoff)
+                itr.remove();
+        for (Map.Entry<String,Launch> e : recentLaunches.entrySet())
+            zones.put(e.getKey(), e.getValue().zone);
+
+        for (Node n : Hudson.getInstance().getNodes())
+            if (n instanceof EC2Slave && ((EC2Slave)n).availabilityZone!=null)
+                zones.put(n.getNodeName(), ((EC2Slave)n).availabilityZone);
+
+        Map<String,Integer> r = new HashMap<String,Integer>();
+        for (String z : zones.values()) {
+            Integer n = r.get(z);
+            r.put(z, n!=null ? n+1 : 1);
+        }
+        return r;
+    }
+
+    public static PlacementPlanner get() {
+        return INSTANCE;
+    }
+
+    private static final PlacementPlanner INSTANCE = new PlacementPlanner();
+
+    public static long SUBNET_CACHE_PERIOD = Long.getLong(PlacementPlanner.class.getName()+".subnetCachePeriod", 60*1000L);
+
+    private static final long RECENT_LAUNCH_PERIOD = 10*60*1000L;
+
+    private static final Logger LOGGER = Logger.getLogger(PlacementPlanner.class.getName());
+}
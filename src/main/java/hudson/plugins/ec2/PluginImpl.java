@@ -6,11 +6,48 @@ import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Added to handle backwards compatibility of xstream class name mapping.
  */
 @Extension
 public class PluginImpl extends Plugin implements Describable<PluginImpl> {
+    /**
+     * {@link Eucalyptus.Metadata} keyed by the Eucalyptus URL, so that we don't have to go fetch them
+     * every time Jenkins starts or the cloud gets reconfigured.
+     */
+    private Map<String,Eucalyptus.Metadata> eucalyptusMetadata = new ConcurrentHashMap<String,Eucalyptus.Metadata>();
+    /**
+     * Latest snapshot taken by {@link CacheSnapshotRefresher}, keyed by the configured {@link SlaveTemplate#cacheSnapshotId}.
+     */
+    private Map<String,String> cacheSnapshots = new ConcurrentHashMap<String,String>();
+    /**
+     * Cache snapshot replaced at the last refresh, which launches in flight may still use, keyed like {@link #cacheSnapshots}.
+     */
+    private Map<String,String> retiredCacheSnapshots = new ConcurrentHashMap<String,String>();
+    /**
+     * AMIs baked by {@link AmiBaker}, keyed by {@link AmiBaker#key(String, String)}.
+     */
+    private Map<String,String> bakedAmis = new ConcurrentHashMap<String,String>();
+    /**
+     * AMIs that {@link AmiBaker} baked and then replaced, but that instances may still run, mapped to their base AMIs.
+     */
+    private Map<String,String> retiredAmis = new ConcurrentHashMap<String,String>();
+    /**
+     * Placement groups created for a single build, mapped to the {@linkplain OrphanedInstanceReaper#leaseOf lease} of the build.
+     */
+    private Map<String,String> buildPlacementGroups = new ConcurrentHashMap<String,String>();
+    /**
+     * Host key fingerprints of slaves, keyed by instance ID, and of jump hosts, keyed by host and port. See {@link hudson.plugins.ec2.ssh.KnownHostsVerifier}.
+     */
+    private Map<String,String> knownHosts = new ConcurrentHashMap<String,String>();
+    /**
+     * {@link TemplateSnapshot}s keyed by their hashes.
+     */
+    private Map<String,TemplateSnapshot> templateSnapshots = new ConcurrentHashMap<String,TemplateSnapshot>();
+
     @Override
     public void start() throws Exception {
         // backward compatibility with the legacy class name
@@ -21,6 +58,54 @@ public class PluginImpl extends Plugin implements Describable<PluginImpl> {
         load();
     }
 
+    /*package*/ synchronized Map<String,Eucalyptus.Metadata> getEucalyptusMetadata() {
+        if (eucalyptusMetadata==null)
+            eucalyptusMetadata = new ConcurrentHashMap<String,Eucalyptus.Metadata>();
+        return eucalyptusMetadata;
+    }
+
+    /*package*/ synchronized Map<String,String> getCacheSnapshots() {
+        if (cacheSnapshots==null)
+            cacheSnapshots = new ConcurrentHashMap<String,String>();
+        return cacheSnapshots;
+    }
+
+    /*package*/ synchronized Map<String,String> getRetiredCacheSnapshots() {
+        if (retiredCacheSnapshots==null)
+            retiredCacheSnapshots = new ConcurrentHashMap<String,String>();
+        return retiredCacheSnapshots;
+    }
+
+    /*package*/ synchronized Map<String,String> getBakedAmis() {
+        if (bakedAmis==null)
+            bakedAmis = new ConcurrentHashMap<String,String>();
+        return bakedAmis;
+    }
+
+    /*package*/ synchronized Map<String,String> getRetiredAmis() {
+        if (retiredAmis==null)
+            retiredAmis = new ConcurrentHashMap<String,String>();
+        return retiredAmis;
+    }
+
+    /*package*/ synchronized Map<String,String> getBuildPlacementGroups() {
+        if (buildPlacementGroups==null)
+            buildPlacementGroups = new ConcurrentHashMap<String,String>();
+        return buildPlacementGroups;
+    }
+
+    public synchronized Map<String,String> getKnownHosts() {
+        if (knownHosts==null)
+            knownHosts = new ConcurrentHashMap<String,String>();
+        return knownHosts;
+    }
+
+    /*package*/ synchronized Map<String,TemplateSnapshot> getTemplateSnapshots() {
+        if (templateSnapshots==null)
+            templateSnapshots = new ConcurrentHashMap<String,TemplateSnapshot>();
+        return templateSnapshots;
+    }
+
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl)Hudson.getInstance().getDescriptorOrDie(getClass());
     }
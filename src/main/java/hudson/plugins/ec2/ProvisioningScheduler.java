@@ -0,0 +1,223 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.util.TimeUnit2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Shares out what's left under the {@linkplain EC2Cloud#instanceCap instance cap} among the labels that want instances.
+ *
+ * <p>
+ * {@link hudson.slaves.NodeProvisioner} asks {@link EC2Cloud#provision(Label, int)} about one label at a time,
+ * so left to itself, the cloud hands the last instances to whichever label happens to be asked first, and a pile
+ * of unimportant builds can keep the urgent ones waiting. Instead, every call records how many instances its label
+ * wants, and the headroom is split among all the labels that wanted some recently: the label whose oldest buildable
+ * item has waited the longest, scaled by the {@linkplain SlaveTemplate#getWeight() weight} of its template, goes first.
+ * Among equals, the template with more executors per instance goes first, since each instance clears more of the queue.
+ * A label that's asked about before its turn only gets what the labels ahead of it leave over.
+ *
+ * <p>
+ * None of this matters until the cap gets in the way, so as long as everyone fits, everyone gets what they ask for.
+ * A label whose instances fail to launch {@linkplain #fail(EC2Cloud, Label) gives up its place}, so that a broken
+ * template doesn't hold back the others.
+ */
+public final class ProvisioningScheduler {
+    /**
+     * Instances that a label wants, as of the last time it was asked about.
+     */
+    /*package*/ static final class Demand {
+        final String cloud;
+        final Label label;
+        int wanted;
+        int weight;
+        int executors;
+        /**
+         * When the oldest buildable item of the label got queued.
+         */
+        long since;
+        /**
+         * When the demand was last recorded.
+         */
+        long recorded;
+        /**
+         * Instances given to the label in the last allocation.
+         */
+        int granted;
+
+        Demand(String cloud, Label label) {
+            this.cloud = cloud;
+            this.label = label;
+        }
+
+        String getName() {
+            return label!=null ? label.getName() : "(unlabeled)";
+        }
+    }
+
+    private final Map<String,Demand> demands = new HashMap<String,Demand>();
+    /**
+     * The allocation last logged for each cloud, so that a cap that stays in the way isn't logged on every round.
+     */
+    private final Map<String,String> logged = new HashMap<String,String>();
+
+    /**
+     * Records how much the label wants, and decides how many instances it gets right now.
+     *
+     * @param excessWorkload
+     *      Executors the label is short of, as passed to {@link EC2Cloud#provision(Label, int)}.
+     * @return
+     *      Instances the label may launch, which still need to be {@linkplain CapacityLedger#reserve(EC2Cloud, SlaveTemplate, int) reserved}.
+     */
+    public int allot(EC2Cloud cloud, Label label, SlaveTemplate t, int excessWorkload) {
+        int executors = Math.max(1, t.getExpectedNumExecutors());
+        int headroom = CapacityLedger.get().getHeadroom(cloud);
+        Map<Label,Long> oldest = oldestQueued();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            String key = key(cloud, label);
+            Demand self = demands.get(key);
+            if (self==null)
+                demands.put(key, self = new Demand(cloud.name, label));
+            self.wanted = (excessWorkload+executors-1)/executors;
+            self.weight = t.getWeight();
+            self.executors = executors;
+            self.recorded = now;
+
+            List<Demand> contenders = new ArrayList<Demand>();
+            for (Iterator<Demand> itr = demands.values().iterator(); itr.hasNext();) {
+                Demand d = itr.next();
+                Long since = oldest.get(d.label);
+                if (d!=self && (since==null || d.wanted<=0 || now-d.recorded > TimeUnit2.SECONDS.toMillis(DEMAND_SECONDS))) {
+                    itr.remove();   // served, gone stale, or its builds have left the queue
+                    continue;
+                }
+                d.since = since!=null ? since : now;
+                if (d.cloud.equals(cloud.name))
+                    contenders.add(d);
+            }
+
+            if (allocate(contenders, headroom, now)) {
+                String allocation = summarize(contenders);
+                if (!allocation.equals(logged.put(cloud.name, allocation)))
+                    LOGGER.info(describe(cloud, headroom, contenders, self, now));
+            } else {
+                logged.remove(cloud.name);
+            }
+
+            int share = self.granted;
+            self.wanted -= share;       // on its way, so it no longer holds back the others
+            if (self.wanted<=0)
+                demands.remove(key);
+            return share;
+        }
+    }
+
+    /**
+     * Drops the demand of a label whose instance couldn't be reserved or launched, so that it doesn't keep
+     * the instances from other labels until it goes stale. It's recorded afresh the next time the label is asked about.
+     */
+    public synchronized void fail(EC2Cloud cloud, Label label) {
+        demands.remove(key(cloud, label));
+    }
+
+    private static String key(EC2Cloud cloud, Label label) {
+        return cloud.name+'/'+(label!=null ? label.getName() : "");
+    }
+
+    /**
+     * Who gets how many of what they want, leaving out how long they've waited, which changes all the time.
+     */
+    private static String summarize(List<Demand> demands) {
+        StringBuilder buf = new StringBuilder();
+        for (Demand d : demands)
+            buf.append(d.getName()).append('=').append(d.granted).append('/').append(d.wanted).append(' ');
+        return buf.toString();
+    }
+
+    /**
+     * Gives each demand what's left of the headroom, in the order of priority.
+     *
+     * @return true if some demand didn't get all it wanted.
+     */
+    /*package*/ static boolean allocate(List<Demand> demands, int headroom, long now) {
+        Collections.sort(demands, byPriority(now));
+        boolean bound = false;
+        for (Demand d : demands) {
+            d.granted = Math.min(d.wanted, headroom);
+            headroom -= d.granted;
+            if (d.granted<d.wanted)
+                bound = true;
+        }
+        return bound;
+    }
+
+    private static Comparator<Demand> byPriority(final long now) {
+        return new Comparator<Demand>() {
+            public int compare(Demand a, Demand b) {
+                long x = score(a), y = score(b);
+                if (x!=y)   return x>y ? -1 : 1;
+                if (a.executors!=b.executors)
+                    return a.executors>b.executors ? -1 : 1;
+                return a.since<b.since ? -1 : a.since>b.since ? 1 : 0;
+            }
+
+            private long score(Demand d) {
+                // in seconds, so that builds queued about the same time tie and the executors get a say
+                return TimeUnit2.MILLISECONDS.toSeconds(now-d.since)*d.weight;
+            }
+        };
+    }
+
+    private static String describe(EC2Cloud cloud, int headroom, List<Demand> demands, Demand self, long now) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Cloud ").append(cloud.name).append(" has room for ").append(headroom).append(" more instances, so");
+        for (Demand d : demands) {
+            buf.append("\n  ").append(d.getName())
+               .append(d.granted==d.wanted ? " gets all " : d.granted>0 ? " gets "+d.granted+" of " : " gets none of ")
+               .append(d.wanted)
+               .append(" (waited ").append(TimeUnit2.MILLISECONDS.toSeconds(now-d.since)).append("s, weight ").append(d.weight)
+               .append(", ").append(d.executors).append(" executors each)");
+            if (d==self)
+                buf.append(" <- asked now");
+        }
+        return buf.toString();
+    }
+
+    /**
+     * When the oldest buildable item of each label got queued. The null key stands for the items with no label.
+     */
+    private static Map<Label,Long> oldestQueued() {
+        Map<Label,Long> r = new HashMap<Label,Long>();
+        for (Queue.BuildableItem item : Hudson.getInstance().getQueue().getBuildableItems()) {
+            Label l = item.task.getAssignedLabel();
+            Long since = r.get(l);
+            if (since==null || item.getInQueueSince()<since)
+                r.put(l, item.getInQueueSince());
+        }
+        return r;
+    }
+
+    public static ProvisioningScheduler get() {
+        return INSTANCE;
+    }
+
+    private static final ProvisioningScheduler INSTANCE = new ProvisioningScheduler();
+
+    /**
+     * How long the demand of a label counts without it being asked about again.
+     */
+    public static int DEMAND_SECONDS = Integer.getInteger(ProvisioningScheduler.class.getName()+".demandSeconds", 60);
+
+    private static final Logger LOGGER = Logger.getLogger(ProvisioningScheduler.class.getName());
+}
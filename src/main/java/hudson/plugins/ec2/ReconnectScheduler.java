@@ -0,0 +1,254 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Node.Mode;
+import hudson.model.Queue;
+import hudson.triggers.Trigger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connects {@link EC2Computer}s a few at a time.
+ *
+ * <p>
+ * When the master restarts or the network blips, every EC2 node wants to reconnect at once,
+ * and each of them opens SSH connections, authenticates and uploads slave.jar. Doing all of that
+ * concurrently pegs the master CPU and makes every single reconnect slow. So instead
+ * {@link EC2RetentionStrategy#start(EC2Computer)} queues the computer here, and we only run
+ * {@link #MAX_CONCURRENT} connects at any given time.
+ *
+ * <p>
+ * Nodes that have queued work waiting for them go first. Nodes that fail to connect are retried
+ * with a randomized exponential backoff, so that a bunch of broken hosts don't hog the slots.
+ */
+public final class ReconnectScheduler {
+    private final List<Request> pending = new ArrayList<Request>();
+    private final Set<String> connecting = new HashSet<String>();
+    private final Random random = new Random();
+    /**
+     * The one pending call to {@link #dispatch()} for requests that are backing off, if any, and when it's due.
+     */
+    private TimerTask wakeUp;
+    private long wakeUpAt;
+
+    private final class Request {
+        final EC2Computer computer;
+        final long queued = System.currentTimeMillis();
+        int failures;
+        long notBefore;
+
+        Request(EC2Computer computer) {
+            this.computer = computer;
+        }
+
+        String getName() {
+            return computer.getName();
+        }
+    }
+
+    /**
+     * Queues a connection attempt, unless one is queued or in progress already.
+     */
+    public void schedule(EC2Computer c) {
+        synchronized (this) {
+            if (connecting.contains(c.getName()) || find(c)!=null)
+                return;
+            pending.add(new Request(c));
+        }
+        dispatch();
+    }
+
+    /**
+     * Position of the computer in the queue, 1 being the next one to connect.
+     *
+     * @return
+     *      0 if the computer is being connected right now, -1 if it's not queued at all.
+     */
+    public int getQueuePosition(EC2Computer c) {
+        Comparator<Request> priority = byPriority(queuedLabels());
+        synchronized (this) {
+            if (connecting.contains(c.getName()))
+                return 0;
+            List<Request> order = new ArrayList<Request>(pending);
+            Collections.sort(order, priority);
+            for (int i=0; i<order.size(); i++)
+                if (order.get(i).getName().equals(c.getName()))
+                    return i+1;
+            return -1;
+        }
+    }
+
+    private Request find(EC2Computer c) {
+        for (Request r : pending)
+            if (r.getName().equals(c.getName()))
+                return r;
+        return null;
+    }
+
+    /**
+     * Starts as many connects as the limit allows.
+     */
+    private void dispatch() {
+        List<Request> started = new ArrayList<Request>();
+        long next = Long.MAX_VALUE;
+        // the queue has its own lock, so look at it before taking ours
+        Comparator<Request> priority = byPriority(queuedLabels());
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Collections.sort(pending, priority);
+            for (Request r : new ArrayList<Request>(pending)) {
+                if (r.computer.getNode()==null) {
+                    pending.remove(r);  // removed while waiting
+                    continue;
+                }
+                if (r.notBefore>now) {
+                    next = Math.min(next, r.notBefore);
+                    continue;
+                }
+                if (connecting.size()>=MAX_CONCURRENT)
+                    break;
+                pending.remove(r);
+                connecting.add(r.getName());
+                started.add(r);
+            }
+            if (next!=Long.MAX_VALUE && (wakeUp==null || next<wakeUpAt))
+                scheduleWakeUp(next);
+        }
+
+        for (final Request r : started) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    connect(r);
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes sure {@link #dispatch()} runs again at the given time, replacing a later wakeup if there's one.
+     */
+    private synchronized void scheduleWakeUp(long at) {
+        if (Trigger.timer==null)
+            return;
+        if (wakeUp!=null)
+            wakeUp.cancel();
+        wakeUpAt = at;
+        wakeUp = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (ReconnectScheduler.this) {
+                    if (wakeUp==this)
+                        wakeUp = null;
+                }
+                dispatch();
+            }
+        };
+        Trigger.timer.schedule(wakeUp, Math.max(0, at-System.currentTimeMillis()));
+    }
+
+    private void connect(Request r) {
+        boolean success = false;
+        try {
+            r.computer.connect(false).get();
+            success = r.computer.isOnline();
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while connecting "+r.getName(), e);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to connect "+r.getName(), e);
+        } finally {
+            synchronized (this) {
+                connecting.remove(r.getName());
+                if (!success && r.computer.getNode()!=null && ++r.failures<MAX_ATTEMPTS) {
+                    long delay = backoff(r.failures);
+                    r.notBefore = System.currentTimeMillis()+delay;
+                    pending.add(r);
+                    LOGGER.info("Failed to connect "+r.getName()+", retrying in "+delay/1000+" secs");
+                }
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * Exponential backoff, randomized between 50% and 100% of the nominal delay
+     * so that hosts that failed together don't retry together.
+     */
+    private synchronized long backoff(int failures) {
+        long delay = Math.min(BACKOFF_MAX, BACKOFF_BASE<<Math.min(failures-1, 16));
+        return delay/2 + (long)(random.nextDouble()*delay/2);
+    }
+
+    /**
+     * Labels of the items in the queue. Null stands for the items that can run anywhere.
+     */
+    private static Set<Label> queuedLabels() {
+        Set<Label> r = new HashSet<Label>();
+        for (Queue.Item item : Hudson.getInstance().getQueue().getItems())
+            r.add(item.task.getAssignedLabel());
+        return r;
+    }
+
+    /**
+     * Nodes with queued work first, then the ones that have waited the longest.
+     *
+     * @param demand
+     *      From {@link #queuedLabels()}.
+     */
+    private Comparator<Request> byPriority(final Set<Label> demand) {
+        final boolean anyNode = demand.contains(null);
+
+        return new Comparator<Request>() {
+            public int compare(Request a, Request b) {
+                boolean x = hasDemand(a), y = hasDemand(b);
+                if (x!=y)   return x ? -1 : 1;
+                return a.queued<b.queued ? -1 : a.queued>b.queued ? 1 : 0;
+            }
+
+            private boolean hasDemand(Request r) {
+                Node n = r.computer.getNode();
+                if (n==null)    return false;
+                if (anyNode && n.getMode()==Mode.NORMAL)
+                    return true;
+                for (Label l : demand)
+                    if (l!=null && l.contains(n))
+                        return true;
+                return false;
+            }
+        };
+    }
+
+    public static ReconnectScheduler get() {
+        return INSTANCE;
+    }
+
+    private static final ReconnectScheduler INSTANCE = new ReconnectScheduler();
+
+    /**
+     * Maximum number of EC2 nodes that are connected concurrently.
+     */
+    public static int MAX_CONCURRENT = Integer.getInteger(ReconnectScheduler.class.getName()+".maxConcurrent", 8);
+
+    /**
+     * Number of attempts before we give up on a node, until something asks for it to be connected again.
+     */
+    public static int MAX_ATTEMPTS = Integer.getInteger(ReconnectScheduler.class.getName()+".maxAttempts", 6);
+
+    private static final long BACKOFF_BASE = 15*1000;
+    private static final long BACKOFF_MAX = 10*60*1000;
+
+    private static final Logger LOGGER = Logger.getLogger(ReconnectScheduler.class.getName());
+}
@@ -0,0 +1,186 @@
+package hudson.plugins.ec2;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tells every machine of a {@link StartEc2Builder} cohort who the other members are.
+ *
+ * <p>
+ * Each member listens on {@link #PORT}. We connect to all of them concurrently and send the member's own
+ * private DNS, as configured in the template, on a line of its own. That's all that older listeners expect,
+ * and they read until the end of the stream. So if no answer comes within {@link #NEGOTIATION_TIMEOUT},
+ * or the listener hangs up, we close our side of the connection and take the line as delivered.
+ * Listeners that want the roster answer "ROSTER" right away instead, and get
+ * <pre>
+ * ROSTER &lt;n>
+ * &lt;instance ID> &lt;private DNS> &lt;public DNS>     (n lines, one per member)
+ * END
+ * </pre>
+ * and then answer "ACK". We never send more than the first line before the listener has asked for it,
+ * so however large the roster gets, an older listener never sees it.
+ *
+ * <p>
+ * Members whose listener isn't up yet are retried up to {@link #MAX_ATTEMPTS} times, so the whole
+ * cohort is normally done in one round-trip instead of one connection after another.
+ */
+public class RosterBroadcaster {
+    private final List<EC2Slave> members;
+    private final PrintStream logger;
+
+    public RosterBroadcaster(List<EC2Slave> members, PrintStream logger) {
+        this.members = members;
+        this.logger = logger;
+    }
+
+    /**
+     * Sends the roster to the given members.
+     *
+     * @param recipients
+     *      Member to the private DNS that it's told is its own.
+     * @return
+     *      true if all of them got it.
+     */
+    public boolean broadcast(Map<EC2Slave,String> recipients) throws InterruptedException {
+        if (recipients.isEmpty())
+            return true;
+
+        StringBuilder roster = new StringBuilder();
+        roster.append("ROSTER ").append(members.size()).append('\n');
+        // Ec2MachineVariables has refreshed these for the whole cohort, so don't go back to EC2 for each member
+        for (EC2Slave m : members)
+            roster.append(m.getInstanceId()).append(' ').append(m.privateDNS).append(' ').append(m.publicDNS).append('\n');
+        roster.append("END\n");
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(recipients.size(), MAX_CONCURRENT), new DaemonThreadFactory());
+        try {
+            Map<EC2Slave,Future<Void>> results = new LinkedHashMap<EC2Slave,Future<Void>>();
+            for (Map.Entry<EC2Slave,String> e : recipients.entrySet())
+                results.put(e.getKey(), pool.submit(new Delivery(e.getKey().publicDNS, e.getValue(), roster.toString())));
+
+            List<String> failed = new ArrayList<String>();
+            for (Map.Entry<EC2Slave,Future<Void>> e : results.entrySet()) {
+                try {
+                    e.getValue().get();
+                } catch (ExecutionException x) {
+                    logger.println("Failed to send the roster to " + e.getKey().getInstanceId() + ": " + x.getCause());
+                    failed.add(e.getKey().getInstanceId());
+                }
+            }
+            if (!failed.isEmpty()) {
+                logger.println("The roster didn't reach " + failed);
+                return false;
+            }
+            logger.println("Sent the roster of " + members.size() + " machines to " + recipients.size() + " of them");
+            return true;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private final class Delivery implements Callable<Void> {
+        private final String host;
+        private final String ownDns;
+        private final String roster;
+
+        Delivery(String host, String ownDns, String roster) {
+            this.host = host;
+            this.ownDns = ownDns;
+            this.roster = roster;
+        }
+
+        public Void call() throws Exception {
+            for (int attempt=1; ; attempt++) {
+                try {
+                    send(host, PORT, ownDns, roster);
+                    return null;
+                } catch (IOException e) {
+                    if (attempt>=MAX_ATTEMPTS)
+                        throw e;
+                    logger.println("Couldn't reach " + host + ":" + PORT + " (" + e.getMessage() + "), retrying");
+                    Thread.sleep(RETRY_INTERVAL*attempt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers the roster to one member.
+     */
+    /*package*/ static void send(String host, int port, String ownDns, String roster) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+            socket.setSoTimeout(NEGOTIATION_TIMEOUT);
+
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+
+            write(pw, host, ownDns + '\n');
+            String request;
+            try {
+                request = in.readLine();
+            } catch (SocketTimeoutException e) {
+                request = null;     // no answer, so an older listener that reads until the end
+            }
+            if (request==null) {
+                // an older listener, which only wants the first line and waits for the end of the stream
+                socket.shutdownOutput();
+                return;
+            }
+            if (!request.trim().equals("ROSTER"))
+                throw new IOException("Unexpected response from " + host + ": " + request);
+
+            socket.setSoTimeout(TIMEOUT);
+            write(pw, host, roster);
+            String ack = in.readLine();
+            if (ack==null || !ack.trim().equals("ACK"))
+                throw new IOException(host + " didn't acknowledge the roster: " + ack);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void write(PrintWriter pw, String host, String s) throws IOException {
+        pw.print(s);
+        pw.flush();
+        if (pw.checkError())
+            throw new IOException("Failed to write to " + host);
+    }
+
+    public static int PORT = Integer.getInteger(RosterBroadcaster.class.getName()+".port", 40000);
+
+    /**
+     * Connect and read timeout in milliseconds.
+     */
+    public static int TIMEOUT = Integer.getInteger(RosterBroadcaster.class.getName()+".timeout", 30*1000);
+
+    /**
+     * How long in milliseconds a listener has to ask for the roster before it's taken for an older one.
+     */
+    public static int NEGOTIATION_TIMEOUT = Integer.getInteger(RosterBroadcaster.class.getName()+".negotiationTimeout", 5*1000);
+
+    public static int MAX_ATTEMPTS = Integer.getInteger(RosterBroadcaster.class.getName()+".maxAttempts", 5);
+
+    public static int MAX_CONCURRENT = Integer.getInteger(RosterBroadcaster.class.getName()+".maxConcurrent", 64);
+
+    private static final long RETRY_INTERVAL = 5*1000L;
+}
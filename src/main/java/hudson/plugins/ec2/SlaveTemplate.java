@@ -3,6 +3,7 @@ package hudson.plugins.ec2;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Util;
+import hudson.model.AbstractBuild;
 import hudson.model.Describable;
 import hudson.model.TaskListener;
 import hudson.model.Descriptor;
@@ -11,6 +12,7 @@ import hudson.model.Hudson;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.labels.LabelAtom;
+import hudson.slaves.NodeProperty;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
@@ -26,6 +28,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.*;
 
@@ -42,15 +45,73 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     public final String remoteFS;
     public final String sshPort;
     public final InstanceType type;
+    /**
+     * Other instance types to fall back to, in the order of preference, when EC2 lacks the capacity for {@link #type}.
+     * Comma or whitespace separated list of "type" or "type:executors", such as "c1.xlarge:16 m1.xlarge".
+     */
+    public final String fallbackTypes;
     public final String labels;
     public final String initScript;
     public final String userData;
     public final String numExecutors;
+    /**
+     * How to size the number of executors when {@link #numExecutors} is left blank. Null means {@link InstanceCapacity.Policy#ECU}.
+     */
+    public final InstanceCapacity.Policy executorPolicy;
+    /**
+     * Executors per unit of {@link #executorPolicy}, blank for 1.
+     */
+    public final String executorsPerUnit;
     public final String remoteAdmin;
     public final String rootCommandPrefix;
     public final String jvmopts;
     public final String subnetId;
+    /**
+     * Name of the cluster placement group to launch into, for low latency and high bandwidth between slaves.
+     * Blank for none, in which case {@link StartEc2Builder} may still put its cohort into one.
+     */
+    public final String placementGroup;
     public final String idleTerminationMinutes;
+    /**
+     * Block device mappings in the syntax of {@link DeviceMappingParser}. Blank to use the mappings of the AMI.
+     */
+    public final String deviceMappings;
+    /**
+     * If true, the instance store volumes get formatted (striped if there are several) and mounted
+     * at {@link #remoteFS} before the slave agent starts.
+     */
+    public final boolean stripeInstanceStore;
+    /**
+     * EBS snapshot holding warm dependency caches (Maven, Gradle, npm...). If set, every slave gets a volume
+     * created from it, or from its latest {@linkplain CacheSnapshotRefresher refreshed} copy, mounted at {@link #cacheMountPoint}.
+     */
+    public final String cacheSnapshotId;
+    public final String cacheMountPoint;
+    /**
+     * If true, {@link AmiBaker} bakes the {@link #initScript} into an AMI derived from {@link #ami},
+     * and slaves are launched from that instead so that they don't have to run the init script.
+     */
+    public final boolean bakeInitScript;
+    /**
+     * If true, instances get a bootstrap script in their user data that connects them back to Jenkins,
+     * and we never SSH into them. See {@link EC2InboundLauncher}.
+     */
+    public final boolean inboundAgent;
+    /**
+     * If true, SSH is only used to start the slave agent, and the channel then goes over a direct TCP
+     * connection to the private address of the instance.
+     */
+    public final boolean directChannel;
+    /**
+     * Upper bound on how many instances of this template may be up at once. 0 for none.
+     * See {@link CapacityLedger}.
+     */
+    private final int instanceCap;
+    /**
+     * How much more urgent the builds for this template are than others when the instance cap is near. 0 for the default.
+     * See {@link ProvisioningScheduler}.
+     */
+    private final int weight;
     public final String privateDns;
     public final boolean stopOnTerminate;
     private final List<EC2Tag> tags;
@@ -60,32 +121,51 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     private transient /*almost final*/ Set<LabelAtom> labelSet;
 	private transient /*almost final*/ Set<String> securityGroupSet;
+    private transient /*almost final*/ List<TypeCandidate> typeCandidates;
+    private transient volatile TemplateSnapshot snapshot;
 
     @DataBoundConstructor
-    public SlaveTemplate(String ami, String zone, String securityGroups, String remoteFS, String sshPort, InstanceType type, String labelString, String description, String initScript, String userData, String numExecutors, String remoteAdmin, String rootCommandPrefix, String jvmopts, String privateDns, boolean stopOnTerminate, String subnetId, List<EC2Tag> tags, String idleTerminationMinutes, boolean usePrivateDnsName) {
+    public SlaveTemplate(String ami, String zone, String securityGroups, String remoteFS, String sshPort, InstanceType type, String fallbackTypes, String labelString, String description, String initScript, String userData, String numExecutors, InstanceCapacity.Policy executorPolicy, String executorsPerUnit, String remoteAdmin, String rootCommandPrefix, String jvmopts, String privateDns, boolean stopOnTerminate, String subnetId, String placementGroup, List<EC2Tag> tags, String idleTerminationMinutes, boolean usePrivateDnsName, String deviceMappings, boolean stripeInstanceStore, String cacheSnapshotId, String cacheMountPoint, boolean bakeInitScript, boolean inboundAgent, boolean directChannel, String instanceCapStr, String weightStr) {
         this.ami = ami;
         this.zone = zone;
         this.securityGroups = securityGroups;
         this.remoteFS = remoteFS;
         this.sshPort = sshPort;
         this.type = type;
+        this.fallbackTypes = fallbackTypes;
         this.privateDns = privateDns;
         this.labels = Util.fixNull(labelString);
         this.description = description;
         this.initScript = initScript;
         this.userData = userData;
         this.numExecutors = Util.fixNull(numExecutors).trim();
+        this.executorPolicy = executorPolicy;
+        this.executorsPerUnit = executorsPerUnit;
         this.remoteAdmin = remoteAdmin;
         this.rootCommandPrefix = rootCommandPrefix;
         this.jvmopts = jvmopts;
         this.stopOnTerminate = stopOnTerminate;
         this.subnetId = subnetId;
+        this.placementGroup = placementGroup;
         this.tags = tags;
         this.idleTerminationMinutes = idleTerminationMinutes;
         this.usePrivateDnsName = usePrivateDnsName;
+        this.deviceMappings = deviceMappings;
+        this.stripeInstanceStore = stripeInstanceStore;
+        this.cacheSnapshotId = Util.fixEmptyAndTrim(cacheSnapshotId);
+        this.cacheMountPoint = Util.fixEmptyAndTrim(cacheMountPoint);
+        this.bakeInitScript = bakeInitScript;
+        this.inboundAgent = inboundAgent;
+        this.directChannel = directChannel;
+        this.instanceCap = StringUtils.isBlank(instanceCapStr) ? 0 : Integer.parseInt(instanceCapStr.trim());
+        this.weight = StringUtils.isBlank(weightStr) ? 0 : Integer.parseInt(weightStr.trim());
 
         readResolve(); // initialize
     }
+
+    public SlaveTemplate(String ami, String zone, String securityGroups, String remoteFS, String sshPort, InstanceType type, String labelString, String description, String initScript, String userData, String numExecutors, String remoteAdmin, String rootCommandPrefix, String jvmopts, String privateDns, boolean stopOnTerminate, String subnetId, List<EC2Tag> tags, String idleTerminationMinutes, boolean usePrivateDnsName) {
+        this(ami, zone, securityGroups, remoteFS, sshPort, type, null, labelString, description, initScript, userData, numExecutors, null, null, remoteAdmin, rootCommandPrefix, jvmopts, privateDns, stopOnTerminate, subnetId, null, tags, idleTerminationMinutes, usePrivateDnsName, null, false, null, null, false, false, false, null, null);
+    }
     
     public EC2Cloud getParent() {
         return parent;
@@ -99,10 +179,45 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return description+" ("+ami+")";
     }
 
+    /**
+     * Upper bound on how many instances of this template may be up at once.
+     */
+    public int getInstanceCap() {
+        return instanceCap>0 ? instanceCap : Integer.MAX_VALUE;
+    }
+
+    public String getInstanceCapStr() {
+        return instanceCap>0 ? String.valueOf(instanceCap) : "";
+    }
+
+    /**
+     * Priority of the builds for this template over others when there aren't enough instances for all of them.
+     */
+    public int getWeight() {
+        return weight>0 ? weight : 1;
+    }
+
+    public String getWeightStr() {
+        return weight>0 ? String.valueOf(weight) : "";
+    }
+
     String getZone() {
         return zone;
     }
 
+    /**
+     * The AMI that slaves are actually launched from: the one {@link AmiBaker} baked from the current init script
+     * if there is one, {@link #ami} otherwise.
+     */
+    public String getLaunchAmi() {
+        if (bakeInitScript) {
+            String baked = AmiBaker.getBakedAmi(ami, initScript);
+            if (baked!=null)
+                return baked;
+        }
+        return ami;
+    }
+
     public String getSecurityGroupString() {
         return securityGroups;
     }
@@ -123,7 +238,84 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         try {
             return Integer.parseInt(numExecutors);
         } catch (NumberFormatException e) {
-            return EC2Slave.toNumExecutors(type);
+            return InstanceCapacity.getNumExecutors(type, executorPolicy, executorsPerUnit);
+        }
+    }
+
+    /**
+     * Number of executors of a slave of the given instance type, which may be one of the {@link #fallbackTypes}.
+     */
+    public int getNumExecutors(String instanceType) {
+        for (TypeCandidate c : typeCandidates)
+            if (c.type.equals(instanceType))
+                return c.numExecutors;
+        return getNumExecutors();
+    }
+
+    /**
+     * Number of executors we expect the next slave to have, considering that we may have to fall back to other instance types.
+     */
+    public int getExpectedNumExecutors() {
+        List<String> zones = getZones();
+        return rankTypeCandidates(zones.isEmpty() ? null : zones.get(0)).get(0).numExecutors;
+    }
+
+    /**
+     * {@link #type} followed by the {@link #fallbackTypes}.
+     */
+    public List<TypeCandidate> getTypeCandidates() {
+        return Collections.unmodifiableList(typeCandidates);
+    }
+
+    /**
+     * Instance types in the order we should try them in the given zone: the configured order,
+     * except that the ones that recently ran out of capacity go last.
+     */
+    public List<TypeCandidate> rankTypeCandidates(String zone) {
+        CapacityFailureTracker tracker = CapacityFailureTracker.get();
+        List<TypeCandidate> available = new ArrayList<TypeCandidate>();
+        List<TypeCandidate> constrained = new ArrayList<TypeCandidate>();
+        for (TypeCandidate c : typeCandidates)
+            (tracker.isConstrained(c.type, zone) ? constrained : available).add(c);
+        available.addAll(constrained);
+        return available;
+    }
+
+    private List<TypeCandidate> parseTypeCandidates() {
+        List<TypeCandidate> r = new ArrayList<TypeCandidate>();
+        r.add(new TypeCandidate(type.toString(), getNumExecutors()));
+        if (fallbackTypes!=null) {
+            for (String token : fallbackTypes.trim().split("[\\s,]+")) {
+                if (token.length()==0)  continue;
+                int idx = token.indexOf(':');
+                String t = idx<0 ? token : token.substring(0,idx);
+                int n;
+                try {
+                    n = idx<0 ? InstanceCapacity.getNumExecutors(t, executorPolicy, executorsPerUnit) : Integer.parseInt(token.substring(idx+1));
+                } catch (NumberFormatException e) {
+                    n = InstanceCapacity.getNumExecutors(t, executorPolicy, executorsPerUnit);
+                }
+                r.add(new TypeCandidate(t, Math.max(1,n)));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * An instance type that this template can launch, and how many executors a slave of that type gets.
+     */
+    public static final class TypeCandidate {
+        public final String type;
+        public final int numExecutors;
+
+        public TypeCandidate(String type, int numExecutors) {
+            this.type = type;
+            this.numExecutors = numExecutors;
+        }
+
+        @Override
+        public String toString() {
+            return type+":"+numExecutors;
         }
     }
 
@@ -147,6 +339,26 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return subnetId;
     }
 
+    /**
+     * {@link #zone} can list several availability zones to spread the slaves over.
+     */
+    public List<String> getZones() {
+        return splitList(zone);
+    }
+
+    /**
+     * {@link #subnetId} can list several subnets to spread the slaves over.
+     */
+    public List<String> getSubnetIds() {
+        return splitList(subnetId);
+    }
+
+    private static List<String> splitList(String s) {
+        if (StringUtils.isBlank(s))
+            return Collections.emptyList();
+        return Arrays.asList(s.trim().split("[\\s,]+"));
+    }
+
     public List<EC2Tag> getTags() {
         return tags == null ? Collections.<EC2Tag>emptyList() : Collections.unmodifiableList(tags);
     }
@@ -169,36 +381,116 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return l==null || labelSet.contains(l);
     }
 
+    /**
+     * Provisions a new EC2 slave that is going to be a Jenkins node of the {@link #getParent() parent cloud}.
+     *
+     * <p>
+     * The instance gets tagged with {@link EC2Cloud#SLAVE_TAG}, so that it can be found again
+     * with {@link EC2Cloud#describeSlaveInstances()}.
+     */
 	public EC2Slave provision(TaskListener listener) throws AmazonClientException, IOException {
-		return provision(new EnvVars(Collections.<String, String>emptyMap()), listener);
+		return provision(null, listener);
 	}
 
+    /**
+     * Same as {@link #provision(TaskListener)}, but launches the instance that's been reserved already.
+     *
+     * @param reservation
+     *      From {@link CapacityLedger#reserve(EC2Cloud, SlaveTemplate, int)}. Null to reserve it here.
+     */
+    public EC2Slave provision(CapacityLedger.Reservation reservation, TaskListener listener) throws AmazonClientException, IOException {
+        return provision(getLaunchAmi(), Collections.singletonList(new EnvVars(Collections.<String, String>emptyMap())),
+                Collections.singletonList(new Tag(EC2Cloud.SLAVE_TAG, getParent().getOwnerId())), null, inboundAgent, reservation, listener).get(0);
+    }
+
     /**
      * Provisions a new EC2 slave.
      *
      * @return always non-null. This needs to be then added to {@link Hudson#addNode(Node)}.
      */
     public EC2Slave provision(EnvVars envVars, TaskListener listener) throws AmazonClientException, IOException {
+        return provision(getLaunchAmi(), Collections.singletonList(envVars), Collections.<Tag>emptyList(), null, inboundAgent, null, listener).get(0);
+    }
+
+    /**
+     * Provisions a new EC2 slave on behalf of a build, like {@link StartEc2Builder} does.
+     *
+     * <p>
+     * The instance gets tagged with {@link EC2Cloud#BUILD_TAG}, so that {@link OrphanedInstanceReaper}
+     * can tell when it outlives the build.
+     */
+    public EC2Slave provision(EnvVars envVars, AbstractBuild<?,?> build, TaskListener listener) throws AmazonClientException, IOException {
+        return provision(Collections.singletonList(envVars), build, null, listener).get(0);
+    }
+
+    /**
+     * Provisions a cohort of EC2 slaves on behalf of a build with a single RunInstances request,
+     * so that either all of them come up or none does, and they land next to each other in the placement group.
+     * These machines never become Jenkins nodes, so they're always reached over SSH, even if the template is set up for
+     * an {@link #inboundAgent inbound agent}.
+     *
+     * @param envVars
+     *      One per slave to launch, used to expand the tags of each.
+     * @param placementGroup
+     *      Placement group for the cohort, used unless this template specifies {@link #placementGroup its own}.
+     *      Null or blank for none. Created if it doesn't exist yet.
+     */
+    public List<EC2Slave> provision(List<EnvVars> envVars, AbstractBuild<?,?> build, String placementGroup, TaskListener listener) throws AmazonClientException, IOException {
+        return provision(getLaunchAmi(), envVars, Collections.singletonList(new Tag(EC2Cloud.BUILD_TAG, OrphanedInstanceReaper.leaseOf(getParent(), build))), placementGroup, false, null, listener);
+    }
+
+    /**
+     * Launches an instance from {@link #ami} itself, for {@link AmiBaker} to run the init script on over SSH.
+     * It's tagged with {@link EC2Cloud#BUILD_TAG} so that it doesn't get mistaken for a slave,
+     * and so that {@link OrphanedInstanceReaper} reclaims it once the lease is over.
+     */
+    /*package*/ EC2Slave provisionBaseImage(String lease, TaskListener listener) throws AmazonClientException, IOException {
+        return provision(ami, Collections.singletonList(new EnvVars(Collections.<String, String>emptyMap())),
+                Collections.singletonList(new Tag(EC2Cloud.BUILD_TAG, lease)), null, false, null, listener).get(0);
+    }
+
+    /**
+     * @param image
+     *      AMI to launch.
+     * @param ownerTags
+     *      Tags that record who owns the instance. Added on top of the configured {@link #getTags() tags}.
+     * @param inbound
+     *      If true, the instances connect back to Jenkins by themselves. See {@link EC2InboundLauncher}.
+     * @param reservation
+     *      Capacity reserved for the instances, or null to reserve it here.
+     */
+    private List<EC2Slave> provision(String image, List<EnvVars> envVars, Collection<Tag> ownerTags, String placementGroup, boolean inbound, CapacityLedger.Reservation reservation, TaskListener listener) throws AmazonClientException, IOException {
         PrintStream logger = listener.getLogger();
         AmazonEC2 ec2 = getParent().connect();
 
+        int count = envVars.size();
+        if (reservation==null) {
+            reservation = CapacityLedger.get().reserve(getParent(), this, count);
+            if (reservation==null)
+                throw new AmazonClientException("Instance cap reached, not launching "+count+" instances of "+getDisplayName());
+        }
+
         try {
-            logger.println("Launching "+ami);
+            logger.println("Launching "+image+(count>1 ? " x"+count : ""));
             KeyPair keyPair = parent.getPrivateKey().find(ec2);
             if(keyPair==null) {
                 throw new AmazonClientException("No matching keypair found on EC2. Is the EC2 private key a valid one?");
             }
            
-            RunInstancesRequest request = new RunInstancesRequest(ami, 1, 1);
-
-            if (StringUtils.isNotBlank(getZone())) {
-            	Placement placement = new Placement(getZone());
-            	request.setPlacement(placement);
+            RunInstancesRequest request = new RunInstancesRequest(image, count, count);
+            List<PlacementPlanner.Choice> placements = PlacementPlanner.get().rank(this, ec2);
+
+            String placementGroupName = StringUtils.isNotBlank(this.placementGroup) ? this.placementGroup : placementGroup;
+            if (StringUtils.isNotBlank(placementGroupName)) {
+                String raw = placementGroupName.trim();
+                placementGroupName = envVars.get(0).expand(raw);
+                // a group named after the build is only good for that build
+                ensurePlacementGroup(ec2, placementGroupName, placementGroupName.equals(raw) ? null : leaseOf(ownerTags), logger);
+            } else {
+                placementGroupName = null;
             }
 
-            if (StringUtils.isNotBlank(getSubnetId())) {
-               request.setSubnetId(getSubnetId());
-
+            if (!getSubnetIds().isEmpty()) {
                /* If we have a subnet ID then we can only use VPC security groups */
                if (!securityGroupSet.isEmpty()) {
                   List<String> group_ids = new ArrayList<String>();
@@ -212,7 +504,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                         List<Filter> filters = new ArrayList<Filter>();
                         filters.add(new Filter("vpc-id").withValues(group.getVpcId()));
                         filters.add(new Filter("state").withValues("available"));
-                        filters.add(new Filter("subnet-id").withValues(getSubnetId()));
+                        filters.add(new Filter("subnet-id").withValues(getSubnetIds()));
 
                         DescribeSubnetsRequest subnet_req = new DescribeSubnetsRequest();
                         subnet_req.withFilters(filters);
@@ -240,38 +532,156 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                request.setSecurityGroups(securityGroupSet);
             }
 
-            request.setUserData(Base64.encodeBase64String(userData.getBytes()));
+            String token = null;
+            String data = userData;
+            if (inbound) {
+                token = EC2InboundLauncher.newToken();
+                data = EC2InboundLauncher.buildUserData(this, token);
+            }
+            request.setUserData(Base64.encodeBase64String(Util.fixNull(data).getBytes("UTF-8")));
             request.setKeyName(keyPair.getKeyName());
-            request.setInstanceType(type.toString());
-            Instance inst = ec2.runInstances(request).getReservation().getInstances().get(0);
-
-            /* Now that we have our instance, we can set tags on it */
-            if (tags != null && !tags.isEmpty()) {
-                HashSet<Tag> inst_tags = new HashSet<Tag>();
-
-                for(EC2Tag t : tags) {
-					String name = envVars.expand(t.getName());
-					String value = envVars.expand(t.getValue());
-					inst_tags.add(new Tag(name, value));
+            List<BlockDeviceMapping> mappings = new ArrayList<BlockDeviceMapping>(DeviceMappingParser.parse(deviceMappings));
+            if (cacheSnapshotId != null) {
+                String snapshot = CacheSnapshotRefresher.getLatestSnapshot(cacheSnapshotId);
+                logger.println("Attaching the cache volume from "+snapshot);
+                mappings.add(new BlockDeviceMapping().withDeviceName(CacheSnapshotRefresher.DEVICE)
+                        .withEbs(new EbsBlockDevice().withSnapshotId(snapshot).withDeleteOnTermination(true)));
+            }
+            if (!mappings.isEmpty())
+                request.setBlockDeviceMappings(mappings);
+            List<Instance> instances = runInstances(ec2, request, placements, placementGroupName, logger);
+            List<String> launchedIds = new ArrayList<String>();
+            for (Instance inst : instances)
+                launchedIds.add(inst.getInstanceId());
+            reservation.commit(launchedIds);
+
+            /* Now that we have our instances, we can set tags on them. Instances that end up with the same tags share a request */
+            Map<Set<Tag>,List<String>> tagRequests = new LinkedHashMap<Set<Tag>,List<String>>();
+            for (int i=0; i<instances.size(); i++) {
+                Instance inst = instances.get(i);
+                EnvVars env = envVars.get(Math.min(i, count-1));
+                HashSet<Tag> inst_tags = new HashSet<Tag>(ownerTags);
+                if (tags != null) {
+                    for(EC2Tag t : tags) {
+                        String name = env.expand(t.getName());
+                        String value = env.expand(t.getValue());
+                        inst_tags.add(new Tag(name, value));
+                    }
                 }
+                if (inst_tags.isEmpty())
+                    continue;
 
-                CreateTagsRequest tag_request = new CreateTagsRequest();
-                tag_request.withResources(inst.getInstanceId()).setTags(inst_tags);
-                ec2.createTags(tag_request);
+                List<String> ids = tagRequests.get(inst_tags);
+                if (ids==null)
+                    tagRequests.put(inst_tags, ids = new ArrayList<String>());
+                ids.add(inst.getInstanceId());
 
-                // That was a remote request - we should also update our local instance data.
+                // That is going to be a remote request - we should also update our local instance data.
                 inst.setTags(inst_tags);
             }
+            for (Map.Entry<Set<Tag>,List<String>> e : tagRequests.entrySet()) {
+                CreateTagsRequest tag_request = new CreateTagsRequest();
+                tag_request.withResources(e.getValue()).setTags(e.getKey());
+                ec2.createTags(tag_request);
+            }
 
-            return newSlave(inst);
+            List<EC2Slave> r = new ArrayList<EC2Slave>();
+            for (Instance inst : instances) {
+                EC2Slave slave = newSlave(inst, inbound);
+                slave.setBootstrapToken(token);
+                r.add(slave);
+            }
+            return r;
         } catch (FormException e) {
             throw new AssertionError(); // we should have discovered all configuration issues upfront
+        } finally {
+            reservation.release(); // whatever didn't get launched
+        }
+    }
+
+    /**
+     * Creates the cluster placement group unless it already exists.
+     *
+     * @param lease
+     *      If the group is only needed by one build, the lease of the build, so that
+     *      {@link OrphanedInstanceReaper} deletes the group once the build is over. Null otherwise.
+     */
+    private void ensurePlacementGroup(AmazonEC2 ec2, String group, String lease, PrintStream logger) throws AmazonClientException, IOException {
+        DescribePlacementGroupsRequest request = new DescribePlacementGroupsRequest().withFilters(new Filter("group-name").withValues(group));
+        if (!ec2.describePlacementGroups(request).getPlacementGroups().isEmpty())
+            return;
+
+        logger.println("Creating placement group "+group);
+        try {
+            ec2.createPlacementGroup(new CreatePlacementGroupRequest().withGroupName(group).withStrategy("cluster"));
+        } catch (AmazonServiceException e) {
+            if (!"InvalidPlacementGroup.Duplicate".equals(e.getErrorCode()))
+                throw e;
+            return; // someone else just created it
+        }
+        if (lease!=null) {
+            PluginImpl.get().getBuildPlacementGroups().put(group, lease);
+            PluginImpl.get().save();
         }
     }
 
+    /**
+     * The {@link EC2Cloud#BUILD_TAG} lease among the tags, if any.
+     */
+    private static String leaseOf(Collection<Tag> ownerTags) {
+        for (Tag t : ownerTags)
+            if (EC2Cloud.BUILD_TAG.equals(t.getKey()))
+                return t.getValue();
+        return null;
+    }
+
+    /**
+     * Launches the instances, trying the places in the given order and the {@link #rankTypeCandidates(String) instance types}
+     * in each of them, until EC2 has the capacity for all of them.
+     *
+     * @param group
+     *      Placement group, or null.
+     */
+    private List<Instance> runInstances(AmazonEC2 ec2, RunInstancesRequest request, List<PlacementPlanner.Choice> placements, String group, PrintStream logger) throws AmazonClientException {
+        AmazonServiceException last = null;
+        for (PlacementPlanner.Choice p : placements) {
+            Placement placement = null;
+            if (p.zone!=null || group!=null)
+                placement = new Placement(p.zone).withGroupName(group);
+            request.setPlacement(placement);
+            request.setSubnetId(p.subnetId);
+
+            for (TypeCandidate c : rankTypeCandidates(p.zone)) {
+                request.setInstanceType(c.type);
+                try {
+                    List<Instance> instances = ec2.runInstances(request).getReservation().getInstances();
+                    for (Instance inst : instances)
+                        PlacementPlanner.get().recordLaunch(inst.getInstanceId(), p);
+                    return instances;
+                } catch (AmazonServiceException e) {
+                    if ("InsufficientFreeAddressesInSubnet".equals(e.getErrorCode())) {
+                        logger.println("Not enough free addresses left in "+p.subnetId);
+                        if (request.getMinCount()==1)
+                            PlacementPlanner.get().recordSubnetExhausted(p.subnetId);
+                        last = e;
+                        break;  // no point trying other instance types in this subnet
+                    }
+                    if (!CapacityFailureTracker.isCapacityError(e))
+                        throw e;
+                    logger.println("No capacity for "+c.type+(p.zone!=null ? " in "+p.zone : "")+": "+e.getMessage());
+                    CapacityFailureTracker.get().recordFailure(c.type, p.zone);
+                    last = e;
+                }
+            }
+        }
+        throw last;
+    }
 
-    private EC2Slave newSlave(Instance inst) throws FormException, IOException {
-        return new EC2Slave(inst.getInstanceId(), description, remoteFS, getSshPort(), getNumExecutors(), labels, initScript, remoteAdmin, rootCommandPrefix, jvmopts, stopOnTerminate, idleTerminationMinutes, inst.getPublicDnsName(), inst.getPrivateDnsName(), EC2Tag.fromAmazonTags(inst.getTags()), usePrivateDnsName);
+    private EC2Slave newSlave(Instance inst, boolean inbound) throws FormException, IOException {
+        EC2Slave slave = new EC2Slave(inst.getInstanceId(), description, remoteFS, getSshPort(), getNumExecutors(inst.getInstanceType()), Node.Mode.NORMAL, labels, getSnapshot(), Collections.<NodeProperty<?>>emptyList(), stopOnTerminate, inst.getPublicDnsName(), inst.getPrivateDnsName(), EC2Tag.fromAmazonTags(inst.getTags()), usePrivateDnsName, stripeInstanceStore, cacheSnapshotId, cacheMountPoint, inbound, directChannel);
+        if (inst.getPlacement()!=null)
+            slave.availabilityZone = inst.getPlacement().getAvailabilityZone();
+        return slave;
     }
 
     /**
@@ -279,26 +689,47 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
      * instead of starting a new one.
      */
     public EC2Slave attach(String instanceId, TaskListener listener) throws AmazonClientException, IOException {
-        PrintStream logger = listener.getLogger();
         AmazonEC2 ec2 = getParent().connect();
 
+        DescribeInstancesRequest request = new DescribeInstancesRequest();
+        request.setInstanceIds(Collections.singletonList(instanceId));
+        Instance inst = ec2.describeInstances(request).getReservations().get(0).getInstances().get(0);
+        return attach(inst, listener);
+    }
+
+    /**
+     * Same as {@link #attach(String, TaskListener)} but for an instance that's already been described,
+     * which saves a round-trip when attaching many of them.
+     */
+    public EC2Slave attach(Instance inst, TaskListener listener) throws IOException {
         try {
-            logger.println("Attaching to "+instanceId);
-            DescribeInstancesRequest request = new DescribeInstancesRequest();
-            request.setInstanceIds(Collections.singletonList(instanceId));
-            Instance inst = ec2.describeInstances(request).getReservations().get(0).getInstances().get(0);
-            return newSlave(inst);
+            listener.getLogger().println("Attaching to "+inst.getInstanceId());
+            // the token the instance was launched with is gone, so it can't get its JNLP secret from us
+            EC2Slave slave = newSlave(inst, false);
+            slave.seedInstanceDescription(inst);
+            return slave;
         } catch (FormException e) {
             throw new AssertionError(); // we should have discovered all configuration issues upfront
         }
     }
 
+    /**
+     * Gets the snapshot of the settings that slaves launched from this template take over.
+     */
+    public TemplateSnapshot getSnapshot() {
+        TemplateSnapshot s = snapshot;
+        if (s==null)
+            snapshot = s = TemplateSnapshot.of(initScript, remoteAdmin, rootCommandPrefix, jvmopts, idleTerminationMinutes);
+        return s;
+    }
+
     /**
      * Initializes data structure that we don't persist.
      */
     protected Object readResolve() {
         labelSet = Label.parse(labels);
         securityGroupSet = parseSecurityGroups();
+        typeCandidates = parseTypeCandidates();
         return this;
     }
 
@@ -354,6 +785,21 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 return FormValidation.ok();   // can't test
         }
 
+        public FormValidation doCheckDeviceMappings(@QueryParameter String value) {
+            try {
+                DeviceMappingParser.parse(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
+        public FormValidation doCheckCacheMountPoint(@QueryParameter String value, @QueryParameter String cacheSnapshotId) {
+            if (Util.fixEmptyAndTrim(cacheSnapshotId)!=null && Util.fixEmptyAndTrim(value)==null)
+                return FormValidation.error("Without a mount point, the cache volume gets attached but never mounted");
+            return FormValidation.ok();
+        }
+
         public FormValidation doCheckIdleTerminationMinutes(@QueryParameter String value) {
             if (value == null || value.trim() == "") return FormValidation.ok();
             try {
@@ -4,6 +4,7 @@ import com.trilead.ssh2.Connection;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
@@ -14,8 +15,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -29,10 +29,20 @@ import java.util.Set;
  */
 public class StartEc2Builder extends Builder {
 	private List<SlaveTemplate> templates;
+	/**
+	 * Cluster placement group to launch the machines into, so that they talk to each other over
+	 * a low latency, high bandwidth network. May refer to build variables. Blank for none.
+	 */
+	private String placementGroup;
 
 	@DataBoundConstructor
-	public StartEc2Builder(List<SlaveTemplate> templates) {
+	public StartEc2Builder(List<SlaveTemplate> templates, String placementGroup) {
 		this.templates = templates == null ? Collections.<SlaveTemplate>emptyList() : templates;
+		this.placementGroup = Util.fixEmptyAndTrim(placementGroup);
+	}
+
+	public StartEc2Builder(List<SlaveTemplate> templates) {
+		this(templates, null);
 	}
 
 	@Override
@@ -43,13 +53,17 @@ public class StartEc2Builder extends Builder {
             int cloudNumber = 0;
             for (SlaveTemplate template : templates) {
                 int count = getCountFromTags(template.getTags(), logger);
+                List<EnvVars> envVars = new ArrayList<EnvVars>();
                 for (int i = 0; i < count; i++) {
-                    template.parent = EC2Cloud.get(); //TODO: allow user to select which cloud service to use
-                    EnvVars envVars = build.getEnvironment(listener);
-                    envVars.put("CLOUD_NUMBER", "" + (cloudNumber++)); //Allow the user to use this in their tags
-                    EC2Slave newMachine = template.provision(envVars, listener);
-                    newMachines.put(newMachine, template);
+                    EnvVars vars = build.getEnvironment(listener);
+                    vars.put("CLOUD_NUMBER", "" + (cloudNumber++)); //Allow the user to use this in their tags
+                    envVars.add(vars);
+                }
 
+                // launch all the machines of the template at once, so that they land next to each other
+                template.parent = EC2Cloud.get(); //TODO: allow user to select which cloud service to use
+                for (EC2Slave newMachine : template.provision(envVars, build, placementGroup, listener)) {
+                    newMachines.put(newMachine, template);
                     logger.println("Created machine " + newMachine.getInstanceId());
                 }
             }
@@ -65,59 +79,40 @@ public class StartEc2Builder extends Builder {
         waitForAllMachinesAddress(newMachines.keySet(), logger);
 
         logger.println("Adding variables to the environment");
-        build.addAction(new Ec2MachineVariables(newMachines.keySet(), listener.getLogger()));
+        build.addAction(new Ec2MachineVariables(build, new ArrayList<EC2Slave>(newMachines.keySet()), listener.getLogger()));
 
         waitForAllMachinesSsh(newMachines.keySet(), logger);
         executeInitScripts(newMachines.keySet(), build.getEnvironment(listener), logger);
-        createClientConnections(newMachines, build.getEnvironment(listener), logger);
+        if (!broadcastRoster(newMachines, build.getEnvironment(listener), logger)) {
+            listener.error("Not all machines received the roster");
+            return false;
+        }
 
         return true;
     }
 
-    private void createClientConnections(Map<EC2Slave, SlaveTemplate> newMachines, EnvVars environment, PrintStream logger) {
-
+    /**
+     * Sends the roster of the cohort to every machine whose template has {@link SlaveTemplate#privateDns} set.
+     */
+    private boolean broadcastRoster(Map<EC2Slave, SlaveTemplate> newMachines, EnvVars environment, PrintStream logger) throws InterruptedException {
+        Map<EC2Slave, String> recipients = new LinkedHashMap<EC2Slave, String>();
         for (Map.Entry<EC2Slave, SlaveTemplate> newMachine : newMachines.entrySet()) {
             String privateDnsVar = newMachine.getValue().privateDns;
             if (privateDnsVar != null) {
                 String privateDns = environment.expand(privateDnsVar);
                 if(!privateDns.isEmpty() && !privateDnsVar.equals(privateDns)) {
-                    PrintWriter pw = null;
-                    Socket socket = null;
-                    try {
-                        String publicDNS = newMachine.getKey().publicDNS;
-                        logger.println("Connecting to " + publicDNS);
-                        socket = new Socket(publicDNS, 40000);
-                        pw = new PrintWriter(socket.getOutputStream());
-                        pw.println(privateDns);
-                        pw.flush();
-                        pw.close();
-                        socket.close();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    } finally {
-                        if (socket != null) {
-                            try {
-                                socket.close();
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                        if (pw != null) {
-                            pw.flush();
-                            pw.close();
-                        }
-                    }
+                    recipients.put(newMachine.getKey(), privateDns);
                 } else {
                     logger.printf("privateDns was '%s'%n", privateDns);
                 }
-
             }
         }
+        return new RosterBroadcaster(new ArrayList<EC2Slave>(newMachines.keySet()), logger).broadcast(recipients);
     }
 
     private void executeInitScripts(Set<EC2Slave> newMachines, EnvVars var, PrintStream logger) {
         for (EC2Slave newMachine : newMachines) {
-            String initScriptWithVars = newMachine.initScript;
+            String initScriptWithVars = newMachine.getInitScript();
             String initScript = var.expand(initScriptWithVars);
             Connection connection = null;
             try {
@@ -215,6 +210,10 @@ public class StartEc2Builder extends Builder {
 		return templates;
 	}
 
+	public String getPlacementGroup() {
+		return placementGroup;
+	}
+
 	@Extension
 	public static final class DescriptorImpl extends Descriptor<Builder> {
 		public boolean isApplicable(Class<? extends AbstractProject> aClass) {
@@ -0,0 +1,136 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteTagsRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Brings the tags of instances from what they are to what they should be, touching only the tags that differ.
+ *
+ * <p>
+ * Tags that are gone get deleted and tags that are new or have a new value get created, which overwrites
+ * the old value, so an instance never goes without the tags that stay. Instances that need the same changes,
+ * as when many slaves get the same tag, share a request, so a single instance takes at most one
+ * {@link DeleteTagsRequest} and one {@link CreateTagsRequest}, and so do any number of them changed alike.
+ */
+public final class TagReconciler {
+    /**
+     * Tags to delete and to create, keyed by instance ID.
+     */
+    private final Map<String,Set<EC2Tag>> deletes = new LinkedHashMap<String,Set<EC2Tag>>();
+    private final Map<String,Set<EC2Tag>> creates = new LinkedHashMap<String,Set<EC2Tag>>();
+
+    /**
+     * Adds the changes that take an instance from one set of tags to another.
+     *
+     * @param current
+     *      Tags the instance has now. Null if none.
+     * @param desired
+     *      Tags the instance should have. Null if none.
+     */
+    public TagReconciler add(String instanceId, List<EC2Tag> current, List<EC2Tag> desired) {
+        Map<String,String> have = toMap(current);
+        Map<String,String> want = toMap(desired);
+
+        Set<EC2Tag> delete = new LinkedHashSet<EC2Tag>();
+        for (Map.Entry<String,String> e : have.entrySet())
+            if (!want.containsKey(e.getKey()) && !isProtected(e.getKey()))
+                delete.add(new EC2Tag(e.getKey(), null));
+
+        Set<EC2Tag> create = new LinkedHashSet<EC2Tag>();
+        for (Map.Entry<String,String> e : want.entrySet())
+            if (!have.containsKey(e.getKey()) || !eq(have.get(e.getKey()), e.getValue()))
+                create.add(new EC2Tag(e.getKey(), e.getValue()));
+
+        if (!delete.isEmpty())  deletes.put(instanceId, delete);
+        if (!create.isEmpty())  creates.put(instanceId, create);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return deletes.isEmpty() && creates.isEmpty();
+    }
+
+    /**
+     * Sends the changes to EC2.
+     */
+    public void apply(AmazonEC2 ec2) throws AmazonClientException {
+        for (AmazonWebServiceRequest r : plan()) {
+            if (r instanceof DeleteTagsRequest)
+                ec2.deleteTags((DeleteTagsRequest) r);
+            else
+                ec2.createTags((CreateTagsRequest) r);
+        }
+        deletes.clear();
+        creates.clear();
+    }
+
+    /**
+     * Groups instances with the same changes into one request each.
+     */
+    /*package*/ List<AmazonWebServiceRequest> plan() {
+        List<AmazonWebServiceRequest> r = new ArrayList<AmazonWebServiceRequest>();
+        for (Map.Entry<Set<EC2Tag>,List<String>> e : group(deletes).entrySet())
+            r.add(new DeleteTagsRequest(e.getValue()).withTags(toAmazonTags(e.getKey(), false)));
+        for (Map.Entry<Set<EC2Tag>,List<String>> e : group(creates).entrySet())
+            r.add(new CreateTagsRequest(e.getValue(), toAmazonTags(e.getKey(), true)));
+        if (!r.isEmpty())
+            LOGGER.fine("Tag changes of "+(deletes.size()+creates.size())+" instances in "+r.size()+" requests");
+        return r;
+    }
+
+    private static Map<Set<EC2Tag>,List<String>> group(Map<String,Set<EC2Tag>> changes) {
+        Map<Set<EC2Tag>,List<String>> groups = new LinkedHashMap<Set<EC2Tag>,List<String>>();
+        for (Map.Entry<String,Set<EC2Tag>> e : changes.entrySet()) {
+            List<String> ids = groups.get(e.getValue());
+            if (ids==null)
+                groups.put(e.getValue(), ids = new ArrayList<String>());
+            ids.add(e.getKey());
+        }
+        return groups;
+    }
+
+    private static List<Tag> toAmazonTags(Set<EC2Tag> tags, boolean withValues) {
+        List<Tag> r = new ArrayList<Tag>();
+        for (EC2Tag t : tags) {
+            // without a value, DeleteTags deletes the tag whatever its value
+            r.add(withValues ? new Tag(t.getName(), t.getValue()) : new Tag().withKey(t.getName()));
+        }
+        return r;
+    }
+
+    private static Map<String,String> toMap(List<EC2Tag> tags) {
+        Map<String,String> r = new HashMap<String,String>();
+        if (tags!=null)
+            for (EC2Tag t : tags)
+                if (t.getName()!=null)
+                    r.put(t.getName(), t.getValue());
+        return r;
+    }
+
+    /**
+     * Tags we don't delete even if they're not in the configuration: the ones reserved by AWS,
+     * which can't be deleted anyway, and the ones we count and find our instances by.
+     */
+    private static boolean isProtected(String key) {
+        return key.startsWith("aws:") || key.equals(EC2Cloud.SLAVE_TAG) || key.equals(EC2Cloud.BUILD_TAG);
+    }
+
+    private static boolean eq(String a, String b) {
+        return a==null ? b==null : a.equals(b);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(TagReconciler.class.getName());
+}
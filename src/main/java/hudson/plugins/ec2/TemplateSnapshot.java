@@ -0,0 +1,122 @@
+package hudson.plugins.ec2;
+
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The settings that {@link EC2Slave}s take over from their {@link SlaveTemplate} as they were at launch time.
+ *
+ * <p>
+ * Init scripts can be tens of kilobytes, and all the slaves of a template have the same one, so rather than
+ * each slave keeping and persisting a copy, there's one snapshot per distinct set of settings, which the slaves
+ * refer to by its {@link #hash}. Reconfiguring the template makes a new snapshot and leaves the running slaves
+ * on the old one. Snapshots are kept in {@link PluginImpl} until no slave or template uses them anymore.
+ */
+public final class TemplateSnapshot {
+    public final String hash;
+    public final String initScript;
+    public final String remoteAdmin;
+    public final String rootCommandPrefix;
+    public final String jvmopts;
+    public final String idleTerminationMinutes;
+
+    private TemplateSnapshot(String initScript, String remoteAdmin, String rootCommandPrefix, String jvmopts, String idleTerminationMinutes) {
+        this.initScript = initScript;
+        this.remoteAdmin = remoteAdmin;
+        this.rootCommandPrefix = rootCommandPrefix;
+        this.jvmopts = jvmopts;
+        this.idleTerminationMinutes = idleTerminationMinutes;
+        this.hash = hash(initScript, remoteAdmin, rootCommandPrefix, jvmopts, idleTerminationMinutes);
+    }
+
+    /**
+     * Gets the snapshot of these settings, making one if there's none yet.
+     */
+    public static TemplateSnapshot of(String initScript, String remoteAdmin, String rootCommandPrefix, String jvmopts, String idleTerminationMinutes) {
+        String hash = hash(initScript, remoteAdmin, rootCommandPrefix, jvmopts, idleTerminationMinutes);
+        PluginImpl p = Hudson.getInstance()!=null ? PluginImpl.get() : null;
+        if (p==null)    // outside Jenkins, as in tests
+            return new TemplateSnapshot(initScript, remoteAdmin, rootCommandPrefix, jvmopts, idleTerminationMinutes);
+
+        Map<String,TemplateSnapshot> snapshots = p.getTemplateSnapshots();
+        TemplateSnapshot s = snapshots.get(hash);
+        if (s!=null)
+            return s;
+        synchronized (snapshots) {
+            s = snapshots.get(hash);
+            if (s==null) {
+                snapshots.put(hash, s = new TemplateSnapshot(initScript, remoteAdmin, rootCommandPrefix, jvmopts, idleTerminationMinutes));
+                try {
+                    p.save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save the template snapshot "+hash, e);
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Finds the snapshot by its hash.
+     *
+     * @return null if it's not known.
+     */
+    public static TemplateSnapshot get(String hash) {
+        PluginImpl p = PluginImpl.get();
+        if (p!=null) {
+            TemplateSnapshot s = p.getTemplateSnapshots().get(hash);
+            if (s!=null)
+                return s;
+        }
+        // the snapshot got lost somehow, but a template may still have the same settings
+        for (Cloud c : Hudson.getInstance().clouds)
+            if (c instanceof EC2Cloud)
+                for (SlaveTemplate t : ((EC2Cloud)c).getTemplates())
+                    if (t.getSnapshot().hash.equals(hash))
+                        return t.getSnapshot();
+        return null;
+    }
+
+    /**
+     * Drops the snapshots that no slave or template uses.
+     */
+    public static void prune() throws IOException {
+        PluginImpl p = PluginImpl.get();
+        if (p==null)
+            return;
+
+        Set<String> used = new HashSet<String>();
+        for (Node n : Hudson.getInstance().getNodes())
+            if (n instanceof EC2Slave)
+                used.add(((EC2Slave)n).getSnapshot().hash);
+        for (Cloud c : Hudson.getInstance().clouds)
+            if (c instanceof EC2Cloud)
+                for (SlaveTemplate t : ((EC2Cloud)c).getTemplates())
+                    used.add(t.getSnapshot().hash);
+
+        Map<String,TemplateSnapshot> snapshots = p.getTemplateSnapshots();
+        if (snapshots.keySet().retainAll(used))
+            p.save();
+    }
+
+    /*package*/ static String hash(String... values) {
+        StringBuilder buf = new StringBuilder();
+        for (String v : values) {
+            // tell null from the empty string, and keep the values apart
+            if (v==null)    buf.append('-');
+            else            buf.append('+').append(v.length()).append(':').append(v);
+        }
+        return Util.getDigestOf(buf.toString());
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(TemplateSnapshot.class.getName());
+}
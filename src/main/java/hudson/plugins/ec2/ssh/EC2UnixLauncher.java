@@ -2,23 +2,35 @@ package hudson.plugins.ec2.ssh;
 
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
+import hudson.plugins.ec2.CacheSnapshotRefresher;
+import hudson.plugins.ec2.ConsoleOutputTracker;
 import hudson.plugins.ec2.EC2ComputerLauncher;
 import hudson.plugins.ec2.EC2Cloud;
 import hudson.plugins.ec2.EC2Computer;
 import hudson.plugins.ec2.EC2Slave;
+import hudson.plugins.ec2.InitScriptProgress;
 import hudson.remoting.Channel;
 import hudson.remoting.Channel.Listener;
 import hudson.slaves.ComputerLauncher;
+import hudson.util.StreamCopyThread;
+import hudson.util.TimeUnit2;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URL;
+import java.util.Date;
 
 import org.apache.commons.io.IOUtils;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.KeyPair;
+import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.SCPClient;
 import com.trilead.ssh2.ServerHostKeyVerifier;
@@ -54,9 +66,21 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
             cleanupConn = conn;
 
             SCPClient scp = conn.createSCPClient();
-            String initScript = computer.getNode().initScript;
 
-            if(initScript!=null && initScript.trim().length()>0 && conn.exec("test -e ~/.hudson-run-init", logger) !=0) {
+            if (computer.getNode().stripeInstanceStore && !mountInstanceStore(conn, computer.getNode(), logger)) {
+                return;
+            }
+
+            if (computer.getNode().cacheSnapshotId != null && computer.getNode().cacheMountPoint != null
+                    && !mountCacheVolume(conn, computer.getNode(), logger)) {
+                return;
+            }
+
+            String initScript = computer.getNode().getInitScript();
+
+            // scripts with steps keep track of what's done themselves, so that changed steps get re-run
+            if(initScript!=null && initScript.trim().length()>0
+                    && (InitScriptEngine.hasSteps(initScript) || conn.exec("test -e ~/.hudson-run-init", logger) !=0)) {
                 if(!executeInitScript(conn, computer.getNode(), initScript, logger)) {
                     return;
                 }
@@ -94,8 +118,12 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
             scp.put(Hudson.getInstance().getJnlpJars("slave.jar").readFully(),
                     "slave.jar","/tmp");
 
-            String jvmopts = computer.getNode().jvmopts;
+            String jvmopts = computer.getNode().getJvmopts();
             String launchString = "java " + (jvmopts != null ? jvmopts : "") + " -jar /tmp/slave.jar";
+            if (computer.getNode().directChannel && launchOverTcp(computer, conn, launchString, inst, logger)) {
+                successful = true;
+                return;
+            }
             logger.println("Launching slave agent: " + launchString);
             final Session sess = conn.openSession();
             sess.execCommand(launchString);
@@ -113,52 +141,182 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         }
     }
 
-    public static boolean executeInitScript(Connection connection, EC2Slave newMachine, String initScript, PrintStream logger) throws IOException, InterruptedException {
-        SCPClient scp = connection.createSCPClient();
+    /**
+     * Starts the slave agent listening on a TCP port, and connects the channel to that port directly
+     * over the private network, so that build data doesn't squeeze through the SSH session and doesn't
+     * get encrypted by the master. The SSH session just keeps the agent running.
+     *
+     * @return false if we couldn't get a direct connection, in which case the caller falls back to the channel over SSH.
+     */
+    private boolean launchOverTcp(EC2Computer computer, final Connection conn, String launchString, Instance inst, PrintStream logger) throws IOException, InterruptedException {
+        if (EC2Cloud.get().jumpHost != null) {
+            logger.println("Slaves behind a jump host can't be reached directly, running the channel over SSH");
+            return false;
+        }
+        String host = inst.getPrivateIpAddress();
+        if (host == null) {
+            logger.println("No private IP address to connect the channel to directly");
+            return false;
+        }
 
-        logger.println("Executing init script");
-        scp.put(initScript.getBytes("UTF-8"),"init.sh","/tmp","0700");
-        Session sess = null;
+        conn.exec("rm -f " + PORT_FILE + " " + PID_FILE, logger);
+        launchString += " -tcp " + PORT_FILE;
+        logger.println("Launching slave agent: " + launchString);
+        final Session sess = conn.openSession();
+        // record the PID, as closing the session doesn't take the agent down with it
+        sess.execCommand("echo $$ > " + PID_FILE + " && exec " + launchString);
+        sess.getStdin().close();
+        new StreamCopyThread("stdout copier for " + computer.getName(), sess.getStdout(), logger).start();
+        new StreamCopyThread("stderr copier for " + computer.getName(), sess.getStderr(), logger).start();
+
+        final Socket socket = new Socket();
         try {
-            sess = connection.openSession();
-            sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr
-            sess.execCommand(EC2UnixLauncher.buildUpCommand(newMachine, "/tmp/init.sh"));
+            int port = readPort(conn);
+            if (port < 0) {
+                logger.println("The slave agent didn't open a TCP port");
+                killAgent(conn, sess, logger);
+                return false;
+            }
+            logger.println("Connecting the channel to " + host + ":" + port);
+            socket.connect(new InetSocketAddress(host, port), DIRECT_CONNECT_TIMEOUT * 1000);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+        } catch (IOException e) {
+            logger.println("Failed to connect the channel directly, falling back to SSH: " + e.getMessage());
+            socket.close();
+            killAgent(conn, sess, logger);
+            return false;
+        }
 
-            sess.getStdin().close();    // nothing to write here
-            sess.getStderr().close();   // we are not supposed to get anything from stderr
-        } finally {
-            if (sess != null) {
+        computer.setChannel(new BufferedInputStream(socket.getInputStream()), new BufferedOutputStream(socket.getOutputStream()), logger, new Listener() {
+            @Override
+            public void onClosed(Channel channel, IOException cause) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already gone
+                }
                 sess.close();
+                conn.close();
             }
-        }
-        try {
-            IOUtils.copy(sess.getStdout(),logger);
+        });
+        return true;
+    }
 
-            int exitStatus = EC2UnixLauncher.waitCompletion(sess);
-            if (exitStatus!=0) {
+    /**
+     * Kills the slave agent that {@link #launchOverTcp} started, so that it doesn't keep listening
+     * for whoever comes along once we've given up on connecting to it.
+     */
+    private static void killAgent(Connection conn, Session sess, PrintStream logger) throws IOException, InterruptedException {
+        if (conn.exec("kill $(cat " + PID_FILE + ") && rm -f " + PID_FILE + " " + PORT_FILE, logger) != 0)
+            logger.println("Failed to kill the slave agent listening on a TCP port");
+        sess.close();
+    }
+
+    /**
+     * Waits for the slave agent to write the port it listens to.
+     *
+     * @return -1 if it doesn't within {@link #DIRECT_CONNECT_TIMEOUT} seconds.
+     */
+    private static int readPort(Connection conn) throws IOException, InterruptedException {
+        for (int i = 0; i < DIRECT_CONNECT_TIMEOUT; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (conn.exec("cat " + PORT_FILE + " 2>/dev/null", out) == 0) {
                 try {
-                    logger.println("init script failed: exit code="+exitStatus);
+                    return Integer.parseInt(out.toString().trim());
+                } catch (NumberFormatException e) {
+                    // not completely written yet
                 }
-                finally {
-                    sess.close();
+            }
+            Thread.sleep(1000);
+        }
+        return -1;
+    }
+
+    /**
+     * Formats and mounts the instance store volumes at the remote FS root, so that the workspaces
+     * sit on the fastest storage the instance has.
+     */
+    private static boolean mountInstanceStore(Connection conn, EC2Slave node, PrintStream logger) throws IOException, InterruptedException {
+        logger.println("Setting up the instance store at " + node.getRemoteFS());
+        byte[] script = IOUtils.toByteArray(EC2UnixLauncher.class.getResourceAsStream("stripe-instance-store.sh"));
+        conn.createSCPClient().put(script, "stripe-instance-store.sh", "/tmp", "0755");
+        if (conn.exec(buildUpCommand(node, "/tmp/stripe-instance-store.sh '" + node.getRemoteFS() + "' '" + node.getRemoteAdmin() + "'"), logger) != 0) {
+            logger.println("Failed to set up the instance store");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Mounts the volume created from {@link EC2Slave#cacheSnapshotId}, so that builds start with warm caches.
+     */
+    private static boolean mountCacheVolume(Connection conn, EC2Slave node, PrintStream logger) throws IOException, InterruptedException {
+        logger.println("Mounting the cache volume at " + node.cacheMountPoint);
+        byte[] script = IOUtils.toByteArray(EC2UnixLauncher.class.getResourceAsStream("mount-cache-volume.sh"));
+        conn.createSCPClient().put(script, "mount-cache-volume.sh", "/tmp", "0755");
+        if (conn.exec(buildUpCommand(node, "/tmp/mount-cache-volume.sh " + CacheSnapshotRefresher.DEVICE + " '" + node.cacheMountPoint + "' '" + node.getRemoteAdmin() + "'"), logger) != 0) {
+            logger.println("Failed to mount the cache volume");
+            return false;
+        }
+        return true;
+    }
+
+    public static boolean executeInitScript(Connection connection, EC2Slave newMachine, String initScript, PrintStream logger) throws IOException, InterruptedException {
+        if (InitScriptEngine.hasSteps(initScript)) {
+            return new InitScriptEngine(connection, newMachine, logger).run(initScript);
+        }
+
+        SCPClient scp = connection.createSCPClient();
+
+        InitScriptProgress progress = InitScriptProgress.begin(newMachine.getNodeName(), logger);
+        progress.setStatus("Running the init script");
+        progress.println("Executing init script");
+        scp.put(initScript.getBytes("UTF-8"),"init.sh","/tmp","0700");
+
+        boolean successful = false;
+        try {
+            Session sess = connection.openSession();
+            try {
+                sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr
+                sess.execCommand(EC2UnixLauncher.buildUpCommand(newMachine, "/tmp/init.sh"));
+                sess.getStdin().close();    // nothing to write here
+
+                int exitStatus = progress.waitFor(sess, "", TimeUnit2.MINUTES.toMillis(INIT_SCRIPT_TIMEOUT));
+                if (exitStatus!=0) {
+                    progress.println("init script failed: exit code="+exitStatus);
+                    return false;
                 }
-                return false;
+            } finally {
+                sess.close();
             }
 
             // Needs a tty to run sudo.
             sess = connection.openSession();
-            sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr
-            sess.execCommand(EC2UnixLauncher.buildUpCommand(newMachine, "touch ~/.hudson-run-init"));
+            try {
+                sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr
+                sess.execCommand(EC2UnixLauncher.buildUpCommand(newMachine, "touch ~/.hudson-run-init"));
+                sess.getStdin().close();
+                if (progress.waitFor(sess, "", TimeUnit2.MINUTES.toMillis(1))!=0) {
+                    progress.println("Failed to mark the init script as done");
+                    return false;
+                }
+            } finally {
+                sess.close();
+            }
+
+            successful = true;
+            return true;
         } finally {
-            sess.close();
+            progress.finish(successful);
         }
-
-        return true;
     }
 
     public static Connection getConnection(EC2Slave computer, PrintStream logger) throws InterruptedException, IOException {
         Connection connection;
 
+        waitForBoot(computer, logger);
+
         Connection bootstrapConn = connectToSsh(computer, logger);
         int bootstrapResult = bootstrap(bootstrapConn, computer, logger);
         if (bootstrapResult == FAILED) {
@@ -177,6 +335,22 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         return connection;
     }
 
+    /**
+     * Waits for the console output of a freshly launched instance to show that sshd is about to come up,
+     * rather than probing the SSH port while the instance is still booting.
+     */
+    private static void waitForBoot(EC2Slave computer, PrintStream logger) throws InterruptedException {
+        if (BOOT_WAIT_SECONDS <= 0)
+            return;
+        Date launched = computer.describeInstance().getLaunchTime();
+        if (launched == null || System.currentTimeMillis() - launched.getTime() > TimeUnit2.MINUTES.toMillis(BOOT_WINDOW_MINUTES))
+            return; // has been up for a while, so there's no boot to wait for
+
+        logger.println("Waiting for " + computer.getInstanceId() + " to boot");
+        if (!ConsoleOutputTracker.get().awaitSshReady(computer.getInstanceId(), TimeUnit2.SECONDS.toMillis(BOOT_WAIT_SECONDS), logger))
+            logger.println("The console output doesn't show sshd coming up yet, trying SSH anyway");
+    }
+
     private static int bootstrap(Connection bootstrapConn, EC2Slave computer, PrintStream logger) throws IOException, InterruptedException, AmazonClientException {
         boolean closeBootstrap = true;
         try {
@@ -210,8 +384,12 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                 Instance instance = computer.describeInstance();
                 String vpc_id = instance.getVpcId();
                 String host;
+                JumpHost jump = JumpHost.get(EC2Cloud.get());
 
-                if (computer.usePrivateDnsName) {
+                if (jump != null) {
+                    /* the jump host is in the VPC, so it can use the private address whatever the instance has */
+                    host = instance.getPrivateIpAddress();
+                } else if (computer.usePrivateDnsName) {
                     host = instance.getPrivateDnsName();
                 } else {
                     /* VPC hosts don't have public DNS names, so we need to use an IP address instead */
@@ -228,7 +406,13 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                 }
 
                 int port = computer.getSshPort();
-				return testConnection(logger, host, port);
+                ServerHostKeyVerifier verifier = new KnownHostsVerifier(computer, logger);
+                if (jump != null) {
+                    Connection conn = jump.connect(host, port, verifier, logger);
+                    logger.println("Connected via SSH.");
+                    return conn;
+                }
+				return testConnection(logger, host, port, verifier);
             } catch (IOException e) {
                 // keep retrying until SSH comes up
                 logger.println("Waiting for SSH to come up. Sleeping 5.");
@@ -238,29 +422,64 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
     }
 
 	public static Connection testConnection(PrintStream logger, String host, int port) throws IOException {
+		return testConnection(logger, host, port, ACCEPT_ANY_HOST_KEY);
+	}
+
+	public static Connection testConnection(PrintStream logger, String host, int port, ServerHostKeyVerifier verifier) throws IOException {
 		logger.println("Connecting to " + host + " on port " + port + ". ");
 		Connection conn = new Connection(host, port);
-		// currently OpenSolaris offers no way of verifying the host certificate, so just accept it blindly,
-		// hoping that no man-in-the-middle attack is going on.
-		conn.connect(new ServerHostKeyVerifier() {
-			public boolean verifyServerHostKey(String hostname, int port, String serverHostKeyAlgorithm, byte[] serverHostKey) throws Exception {
-				return true;
-			}
-		});
+		conn.connect(verifier);
 		logger.println("Connected via SSH.");
 		return conn; // successfully connected
 	}
 
 	public static int waitCompletion(Session session) throws InterruptedException {
-        // I noticed that the exit status delivery often gets delayed. Wait up to 1 sec.
-        for( int i=0; i<10; i++ ) {
-            Integer r = session.getExitStatus();
-            if(r!=null) return r;
-            Thread.sleep(100);
-        }
-        return -1;
+        return waitCompletion(session, 30*1000);
     }
 
+	/**
+	 * Waits for the exit status of a command whose output has already been consumed.
+	 *
+	 * @return -1 if it doesn't arrive within the timeout.
+	 */
+	public static int waitCompletion(Session session, long timeout) throws InterruptedException {
+        session.waitForCondition(ChannelCondition.EXIT_STATUS, timeout);
+        Integer r = session.getExitStatus();
+        return r!=null ? r : -1;
+    }
+
+    // currently OpenSolaris offers no way of verifying the host certificate, so just accept it blindly,
+    // hoping that no man-in-the-middle attack is going on.
+    private static final ServerHostKeyVerifier ACCEPT_ANY_HOST_KEY = new ServerHostKeyVerifier() {
+        public boolean verifyServerHostKey(String hostname, int port, String serverHostKeyAlgorithm, byte[] serverHostKey) throws Exception {
+            return true;
+        }
+    };
+
+    private static final String PORT_FILE = "/tmp/slave.port";
+    private static final String PID_FILE = "/tmp/slave.pid";
+
+    /**
+     * How long to wait for the console output to show that sshd is coming up before trying SSH anyway, in seconds.
+     * 0 to not wait.
+     */
+    public static int BOOT_WAIT_SECONDS = Integer.getInteger(EC2UnixLauncher.class.getName()+".bootWaitSeconds", 120);
+
+    /**
+     * Instances launched longer ago than this, in minutes, are assumed to be done booting.
+     */
+    private static final int BOOT_WINDOW_MINUTES = 10;
+
+    /**
+     * How long to wait for the slave agent to listen and accept the direct channel, in seconds.
+     */
+    public static int DIRECT_CONNECT_TIMEOUT = Integer.getInteger(EC2UnixLauncher.class.getName()+".directConnectTimeout", 60);
+
+    /**
+     * How long the init script may run, in minutes.
+     */
+    public static int INIT_SCRIPT_TIMEOUT = Integer.getInteger(EC2UnixLauncher.class.getName()+".initScriptTimeout", 60);
+
     @Override
 	public Descriptor<ComputerLauncher> getDescriptor() {
         throw new UnsupportedOperationException();
@@ -18,7 +18,10 @@ public class HostKeyVerifierImpl implements ServerHostKeyVerifier {
         this.console = console;
     }
 
-    private String getFingerprint(byte[] serverHostKey) {
+    /**
+     * MD5 fingerprint of the host key, in the same format as <tt>ssh-keygen -l</tt> prints it to the console.
+     */
+    public static String getFingerprint(byte[] serverHostKey) {
         MD5 md5 = new MD5();
         md5.update(serverHostKey);
 
@@ -0,0 +1,305 @@
+package hudson.plugins.ec2.ssh;
+
+import hudson.Util;
+import hudson.plugins.ec2.EC2Slave;
+import hudson.plugins.ec2.InitScriptProgress;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.TimeUnit2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.Session;
+
+/**
+ * Runs an init script that is split into named steps, such as
+ * <pre>
+ * #!/bin/sh
+ * set -e
+ * ### step jdk
+ * yum install -y java-1.6.0-openjdk
+ * ### step maven needs jdk
+ * ...
+ * ### step docker
+ * ...
+ * </pre>
+ * Whatever comes before the first step is prepended to every step.
+ *
+ * <p>
+ * Each step runs as its own script in its own SSH session, all on the same connection, and steps whose
+ * dependencies are done run concurrently (up to {@link #MAX_PARALLEL} at a time). When a step succeeds, we leave
+ * <tt>~/.hudson-init/&lt;step>.&lt;hash></tt> on the node, where the hash covers the step, the preamble and the hashes
+ * of the steps it needs. Steps whose marker is there are skipped the next time, so changing one step only re-runs
+ * it and what depends on it.
+ *
+ * <p>
+ * Scripts without step markers run as a whole, as they always have; see {@link EC2UnixLauncher#executeInitScript}.
+ */
+public class InitScriptEngine {
+    private final Connection connection;
+    private final EC2Slave node;
+    private final PrintStream logger;
+    private InitScriptProgress progress;
+
+    public InitScriptEngine(Connection connection, EC2Slave node, PrintStream logger) {
+        this.connection = connection;
+        this.node = node;
+        this.logger = logger;
+    }
+
+    /**
+     * One step of the init script.
+     */
+    public static final class Step {
+        public final String name;
+        public final List<String> needs;
+        /**
+         * The script to run, including the preamble.
+         */
+        public final String script;
+        /**
+         * Identifies the content of this step and of everything it needs.
+         */
+        String hash;
+
+        Step(String name, List<String> needs, String script) {
+            this.name = name;
+            this.needs = needs;
+            this.script = script;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        String getMarker() {
+            return name+'.'+hash;
+        }
+    }
+
+    /**
+     * Does this init script use step markers?
+     */
+    public static boolean hasSteps(String script) {
+        return script!=null && STEP.matcher(script).find();
+    }
+
+    /**
+     * Splits the script into steps, in the order they are declared, and computes their hashes.
+     *
+     * @throws IllegalArgumentException
+     *      if a step needs an unknown step, steps depend on each other in a cycle, or a name is used twice.
+     */
+    public static List<Step> parse(String script) {
+        Matcher m = STEP.matcher(script);
+        int start = -1;
+        String preamble = null;
+        String name = null;
+        List<String> needs = null;
+        Map<String,Step> steps = new LinkedHashMap<String,Step>();
+
+        while (true) {
+            boolean found = m.find();
+            int end = found ? m.start() : script.length();
+            if (preamble==null) {
+                preamble = script.substring(0, end);
+            } else {
+                if (steps.containsKey(name))
+                    throw new IllegalArgumentException("Step "+name+" is defined twice");
+                steps.put(name, new Step(name, needs, preamble+script.substring(start, end)));
+            }
+            if (!found)     break;
+
+            name = m.group(1);
+            needs = m.group(2)!=null ? Arrays.asList(m.group(2).trim().split("\\s+")) : new ArrayList<String>();
+            start = m.end();
+        }
+
+        for (Step s : steps.values())
+            for (String n : s.needs)
+                if (!steps.containsKey(n))
+                    throw new IllegalArgumentException("Step "+s.name+" needs unknown step "+n);
+        for (Step s : steps.values())
+            computeHash(s, steps, new HashSet<String>());
+        return new ArrayList<Step>(steps.values());
+    }
+
+    private static String computeHash(Step s, Map<String,Step> steps, Set<String> visiting) {
+        if (s.hash!=null)   return s.hash;
+        if (!visiting.add(s.name))
+            throw new IllegalArgumentException("Steps depend on each other in a cycle: "+visiting);
+        StringBuilder buf = new StringBuilder(s.script);
+        for (String n : s.needs)
+            buf.append('\n').append(computeHash(steps.get(n), steps, visiting));
+        visiting.remove(s.name);
+        return s.hash = Util.getDigestOf(buf.toString());
+    }
+
+    /**
+     * Runs the steps that haven't been done yet.
+     *
+     * @return true if all steps are done.
+     */
+    public boolean run(String script) throws IOException, InterruptedException {
+        List<Step> steps;
+        try {
+            steps = parse(script);
+        } catch (IllegalArgumentException e) {
+            logger.println("Malformed init script: "+e.getMessage());
+            return false;
+        }
+
+        progress = InitScriptProgress.begin(node.getNodeName(), logger);
+        boolean successful = false;
+        try {
+            successful = run(steps);
+            return successful;
+        } finally {
+            progress.finish(successful);
+        }
+    }
+
+    private boolean run(List<Step> steps) throws IOException, InterruptedException {
+        Set<String> markers = listMarkers();
+        Set<String> done = new HashSet<String>();
+        List<Step> pending = new ArrayList<Step>();
+        for (Step s : steps) {
+            if (markers.contains(s.getMarker()))
+                done.add(s.name);
+            else
+                pending.add(s);
+        }
+        if (pending.isEmpty()) {
+            progress.println("All "+steps.size()+" init script steps are up to date");
+            return true;
+        }
+        progress.println("Running init script steps: "+names(pending)+" (up to date: "+done+")");
+
+        SCPClient scp = connection.createSCPClient();
+        for (Step s : pending)
+            scp.put(s.script.getBytes("UTF-8"), "init-"+s.name+".sh", "/tmp", "0700");
+
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(pending.size(), MAX_PARALLEL), new DaemonThreadFactory());
+        try {
+            CompletionService<Step> cs = new ExecutorCompletionService<Step>(pool);
+            int running = 0;
+            boolean failed = false;
+            while (true) {
+                if (!failed) {
+                    for (Step s : new ArrayList<Step>(pending)) {
+                        if (done.containsAll(s.needs)) {
+                            pending.remove(s);
+                            cs.submit(new StepRunner(s));
+                            running++;
+                        }
+                    }
+                }
+                if (running==0)     break;
+                progress.setStatus("Init script: "+done.size()+" of "+steps.size()+" steps done, "+running+" running");
+
+                try {
+                    Step s = cs.take().get();
+                    done.add(s.name);
+                } catch (ExecutionException e) {
+                    progress.println(e.getCause().getMessage());
+                    failed = true;  // let the running ones finish, but don't start new ones
+                }
+                running--;
+            }
+            progress.println("Init script took "+(System.currentTimeMillis()-start)/1000+"s");
+            return !failed && pending.isEmpty();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private final class StepRunner implements Callable<Step> {
+        private final Step step;
+
+        StepRunner(Step step) {
+            this.step = step;
+        }
+
+        public Step call() throws Exception {
+            long start = System.currentTimeMillis();
+            int exitStatus;
+            Session sess = connection.openSession();
+            try {
+                sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr, and sudo gets a tty
+                sess.execCommand(EC2UnixLauncher.buildUpCommand(node, "/tmp/init-"+step.name+".sh"));
+                sess.getStdin().close();
+                exitStatus = progress.waitFor(sess, "["+step.name+"] ", TimeUnit2.MINUTES.toMillis(EC2UnixLauncher.INIT_SCRIPT_TIMEOUT));
+            } finally {
+                sess.close();
+            }
+
+            String duration = (System.currentTimeMillis()-start)/1000+"s";
+            if (exitStatus!=0)
+                throw new IOException("Step "+step.name+" failed after "+duration+": exit code="+exitStatus);
+            progress.println("Step "+step.name+" finished in "+duration);
+
+            exec("mkdir -p ~/.hudson-init && touch ~/.hudson-init/"+step.getMarker(), new ByteArrayOutputStream());
+            return step;
+        }
+    }
+
+    private Set<String> listMarkers() throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exec("ls ~/.hudson-init 2>/dev/null", out);
+        return new HashSet<String>(Arrays.asList(out.toString("UTF-8").trim().split("\\s+")));
+    }
+
+    /**
+     * Runs a command in a new session, collecting its output.
+     */
+    private int exec(String command, ByteArrayOutputStream out) throws IOException, InterruptedException {
+        Session sess = connection.openSession();
+        try {
+            sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr, and sudo gets a tty
+            sess.execCommand(command);
+            sess.getStdin().close();
+            IOUtils.copy(sess.getStdout(), out);
+            return EC2UnixLauncher.waitCompletion(sess, 30*1000);
+        } finally {
+            sess.close();
+        }
+    }
+
+    private static List<String> names(List<Step> steps) {
+        List<String> r = new ArrayList<String>();
+        for (Step s : steps)
+            r.add(s.name);
+        return r;
+    }
+
+    /**
+     * "### step name" or "### step name needs a b c" on a line of its own.
+     */
+    private static final Pattern STEP = Pattern.compile("^###[ \\t]*step[ \\t]+([\\w.-]+)(?:[ \\t]+needs((?:[ \\t]+[\\w.-]+)+))?[ \\t]*\\r?(?:\\n|\\z)", Pattern.MULTILINE);
+
+    /**
+     * Most SSH servers allow 10 sessions per connection.
+     */
+    public static int MAX_PARALLEL = Integer.getInteger(InitScriptEngine.class.getName()+".maxParallel", 8);
+}
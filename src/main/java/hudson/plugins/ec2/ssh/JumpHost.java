@@ -0,0 +1,265 @@
+package hudson.plugins.ec2.ssh;
+
+import hudson.plugins.ec2.EC2Cloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.LocalStreamForwarder;
+import com.trilead.ssh2.ServerHostKeyVerifier;
+
+/**
+ * The {@linkplain EC2Cloud#jumpHost jump host} that connections to slaves get tunneled through.
+ *
+ * <p>
+ * We keep one authenticated connection to it and open a direct-tcpip channel over it for every slave,
+ * so however many slaves there are, there's only one SSH handshake with the jump host, and the slaves
+ * don't need addresses that Jenkins can reach. The connection is re-established on demand if it drops,
+ * and closed once the configuration changes and the last tunnel through it is gone.
+ *
+ * <p>
+ * The host key of the jump host is checked by {@link KnownHostsVerifier}, like those of the slaves.
+ */
+public final class JumpHost {
+    private final String id;
+    private final String host;
+    private final int port;
+    private final String user;
+    private final char[] key;
+
+    private Connection connection;
+    private int tunnels;
+    private boolean retired;
+
+    private JumpHost(String id, String host, int port, String user, char[] key) {
+        this.id = id;
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.key = key;
+    }
+
+    /**
+     * Gets the jump host of the given cloud.
+     *
+     * @return null if the cloud connects to slaves directly.
+     */
+    public static synchronized JumpHost get(EC2Cloud cloud) throws AmazonClientException, IOException {
+        if (cloud==null || cloud.jumpHost==null)
+            return null;
+
+        String id = cloud.getJumpUser()+'@'+cloud.jumpHost;
+        if (current!=null && current.id.equals(id))
+            return current;
+        if (current!=null)
+            current.retire();
+
+        String host = cloud.jumpHost;
+        int port = 22;
+        int idx = host.lastIndexOf(':');
+        if (idx>0) {
+            port = Integer.parseInt(host.substring(idx+1));
+            host = host.substring(0, idx);
+        }
+        current = new JumpHost(id, host, port, cloud.getJumpUser(), cloud.getKeyPair().getKeyMaterial().toCharArray());
+        return current;
+    }
+
+    /**
+     * Connects to the SSH server of a slave through the jump host.
+     *
+     * @param host
+     *      Address of the slave, as seen from the jump host.
+     */
+    public Connection connect(String host, int port, ServerHostKeyVerifier verifier, PrintStream logger) throws IOException {
+        Connection outer = acquire(logger);
+        final AtomicBoolean closed = new AtomicBoolean();
+        Tunnel tunnel = null;
+        boolean successful = false;
+        try {
+            tunnel = new Tunnel(outer.createLocalStreamForwarder(host, port), host + ":" + port);
+            logger.println("Tunneling to " + host + ":" + port + " through " + this.host);
+
+            final Tunnel t = tunnel;
+            Connection conn = new Connection("127.0.0.1", tunnel.getLocalPort());
+            conn.connect(verifier);
+            conn.addConnectionMonitor(new ConnectionMonitor() {
+                public void connectionLost(Throwable reason) {
+                    if (!closed.getAndSet(true)) {
+                        t.close();
+                        release();
+                    }
+                }
+            });
+            successful = true;
+            return conn;
+        } finally {
+            if (!successful && !closed.getAndSet(true)) {
+                if (tunnel!=null)
+                    tunnel.close();
+                release();
+            }
+        }
+    }
+
+    /**
+     * Gets the connection to the jump host, connecting if need be, and counts one more tunnel through it.
+     */
+    private synchronized Connection acquire(PrintStream logger) throws IOException {
+        if (connection==null) {
+            logger.println("Connecting to the jump host " + host + " on port " + port);
+            final Connection c = new Connection(host, port);
+            c.connect(new KnownHostsVerifier(host, port, logger));
+            if (!c.authenticateWithPublicKey(user, key, "")) {
+                c.close();
+                throw new IOException("Authentication to the jump host " + host + " as " + user + " failed");
+            }
+            c.addConnectionMonitor(new ConnectionMonitor() {
+                public void connectionLost(Throwable reason) {
+                    LOGGER.log(Level.INFO, "Lost the connection to the jump host " + host, reason);
+                    synchronized (JumpHost.this) {
+                        if (connection==c)
+                            connection = null;
+                    }
+                }
+            });
+            connection = c;
+        }
+        tunnels++;
+        return connection;
+    }
+
+    private synchronized void release() {
+        tunnels--;
+        if (retired && tunnels<=0)
+            closeConnection();
+    }
+
+    private synchronized void retire() {
+        retired = true;
+        if (tunnels<=0)
+            closeConnection();
+    }
+
+    private void closeConnection() {
+        if (connection!=null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    /**
+     * Carries the one connection that the SSH client makes to a loopback port over a direct-tcpip channel of the
+     * jump host connection.
+     *
+     * <p>
+     * Trilead can only run SSH over a socket of its own, so there has to be a port to connect to. It's bound to
+     * whatever port is free in one go, so nobody can take it from under us, and stops listening as soon as
+     * the first connection comes in, so nobody else can use the channel.
+     */
+    private static final class Tunnel implements Runnable {
+        private final LocalStreamForwarder forwarder;
+        private final ServerSocket listener;
+        private volatile Socket socket;
+
+        Tunnel(LocalStreamForwarder forwarder, String name) throws IOException {
+            this.forwarder = forwarder;
+            try {
+                listener = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            } catch (IOException e) {
+                close(forwarder);
+                throw e;
+            }
+            Thread t = new Thread(this, "Tunnel to " + name);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int getLocalPort() {
+            return listener.getLocalPort();
+        }
+
+        public void run() {
+            try {
+                try {
+                    socket = listener.accept();
+                } finally {
+                    stopListening();
+                }
+                final InputStream in = socket.getInputStream();
+                final OutputStream out = forwarder.getOutputStream();
+                Thread t = new Thread(Thread.currentThread().getName() + " (outbound)") {
+                    @Override
+                    public void run() {
+                        pump(in, out);
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+                pump(forwarder.getInputStream(), socket.getOutputStream());
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Tunnel broke", e);
+                close();
+            }
+        }
+
+        /**
+         * Copies until either end is done, and then takes down the whole tunnel.
+         */
+        private void pump(InputStream in, OutputStream out) {
+            try {
+                IOUtils.copy(in, out);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Tunnel broke", e);
+            } finally {
+                close();
+            }
+        }
+
+        private void stopListening() {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        void close() {
+            stopListening();
+            Socket s = socket;
+            if (s!=null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            close(forwarder);
+        }
+
+        private static void close(LocalStreamForwarder f) {
+            try {
+                f.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close a tunnel", e);
+            }
+        }
+    }
+
+    private static JumpHost current;
+
+    private static final Logger LOGGER = Logger.getLogger(JumpHost.class.getName());
+}
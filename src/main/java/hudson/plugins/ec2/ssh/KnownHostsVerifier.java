@@ -0,0 +1,151 @@
+package hudson.plugins.ec2.ssh;
+
+import hudson.plugins.ec2.ConsoleOutputTracker;
+import hudson.plugins.ec2.EC2Slave;
+import hudson.plugins.ec2.PluginImpl;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonClientException;
+import com.trilead.ssh2.ServerHostKeyVerifier;
+
+/**
+ * {@link ServerHostKeyVerifier} that remembers the host key of every slave.
+ *
+ * <p>
+ * The first time we connect to an instance, we check the host key against the fingerprints that the instance
+ * printed to its console when it generated its keys (as seen by {@link ConsoleOutputTracker}), like {@link HostKeyVerifierImpl} does, and record it in
+ * {@link PluginImpl#getKnownHosts()}. From then on, connections to the instance, including reconnects after
+ * Jenkins restarts, are checked against the recorded fingerprint without calling EC2 at all.
+ *
+ * <p>
+ * If the console output doesn't have any fingerprints (yet, as it lags behind, or at all, as not every AMI
+ * prints them), the key is trusted on first use, unless {@link #STRICT} is set.
+ *
+ * <p>
+ * Hosts that we didn't launch, like the {@linkplain JumpHost jump host}, have no console output for us to check,
+ * so their keys are always trusted on first use, and any change after that is refused.
+ */
+public class KnownHostsVerifier implements ServerHostKeyVerifier {
+    /**
+     * Key in {@link PluginImpl#getKnownHosts()}.
+     */
+    private final String id;
+    /**
+     * Instance whose console output has the fingerprints, or null for a host we didn't launch.
+     */
+    private final String instanceId;
+    private final PrintStream logger;
+
+    public KnownHostsVerifier(EC2Slave node, PrintStream logger) {
+        this(node.getInstanceId(), node.getInstanceId(), logger);
+    }
+
+    /**
+     * For a host that isn't one of our instances.
+     */
+    public KnownHostsVerifier(String host, int port, PrintStream logger) {
+        this(host+':'+port, null, logger);
+    }
+
+    private KnownHostsVerifier(String id, String instanceId, PrintStream logger) {
+        this.id = id;
+        this.instanceId = instanceId;
+        this.logger = logger;
+    }
+
+    public boolean verifyServerHostKey(String hostname, int port, String serverHostKeyAlgorithm, byte[] serverHostKey) throws Exception {
+        String fingerprint = HostKeyVerifierImpl.getFingerprint(serverHostKey);
+        Map<String,String> knownHosts = PluginImpl.get().getKnownHosts();
+
+        String known = knownHosts.get(id);
+        if (known!=null) {
+            if (known.equals(fingerprint))
+                return true;
+            logger.println("Host key of " + id + " changed from " + known + " to " + fingerprint + ". Refusing to connect");
+            return false;
+        }
+
+        if (instanceId==null) {
+            logger.println("Trusting the host key " + fingerprint + " of " + id + " on first use");
+            knownHosts.put(id, fingerprint);
+            PluginImpl.get().save();
+            return true;
+        }
+
+        Boolean r = check(getConsoleOutput(), fingerprint);
+        if (r==null) {
+            if (STRICT) {
+                logger.println("No host key fingerprints in the console output of " + instanceId + " yet");
+                return false;
+            }
+            logger.println("No host key fingerprints in the console output of " + instanceId + ", trusting " + fingerprint + " on first use");
+        } else if (!r) {
+            logger.println("Host key " + fingerprint + " isn't among the fingerprints in the console output of " + instanceId + ". Refusing to connect");
+            return false;
+        } else {
+            logger.println("Verified host key " + fingerprint + " against the console output");
+        }
+
+        knownHosts.put(id, fingerprint);
+        PluginImpl.get().save();
+        return true;
+    }
+
+    private String getConsoleOutput() {
+        try {
+            return ConsoleOutputTracker.get().getOutput(instanceId, CONSOLE_MAX_AGE);
+        } catch (AmazonClientException e) {
+            logger.println("Failed to get the console output of " + instanceId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Checks the fingerprint against the ones in the console output.
+     *
+     * @return null if the console output doesn't have any fingerprints.
+     */
+    /*package*/ static Boolean check(String console, String fingerprint) {
+        if (console==null)
+            return null;
+        Matcher m = FINGERPRINT.matcher(console);
+        boolean found = false;
+        while (m.find()) {
+            if (m.group().equalsIgnoreCase(fingerprint))
+                return true;
+            found = true;
+        }
+        return found ? Boolean.FALSE : null;
+    }
+
+    /**
+     * Forgets the host key of an instance that's gone.
+     */
+    public static void forget(String instanceId) {
+        PluginImpl p = PluginImpl.get();
+        if (p!=null && p.getKnownHosts().remove(instanceId)!=null) {
+            try {
+                p.save();
+            } catch (IOException e) {
+                // not a big deal, as instance IDs aren't reused
+            }
+        }
+    }
+
+    /**
+     * The fingerprints get printed once, so output that the launcher waited on is good enough.
+     */
+    private static final long CONSOLE_MAX_AGE = 30*1000;
+
+    private static final Pattern FINGERPRINT = Pattern.compile("\\b[0-9a-fA-F]{2}(?::[0-9a-fA-F]{2}){15}\\b");
+
+    /**
+     * If true, refuse to connect until the console output shows the fingerprints, instead of trusting on first use.
+     */
+    public static boolean STRICT = Boolean.getBoolean(KnownHostsVerifier.class.getName()+".strict");
+}
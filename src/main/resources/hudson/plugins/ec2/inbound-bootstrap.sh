@@ -0,0 +1,69 @@
+#!/bin/sh
+# Connects this instance back to Jenkins as a slave, without SSH. Generated by the EC2 plugin
+# and passed as user data, so it runs as root on the first boot.
+#
+# The @...@ tokens are replaced with shell-quoted values by EC2InboundLauncher.
+
+JENKINS_URL=@JENKINS_URL@
+TOKEN=@TOKEN@
+REMOTE_FS=@REMOTE_FS@
+RUN_AS=@RUN_AS@
+JVMOPTS=@JVMOPTS@
+JDK_URL=@JDK_URL@
+INIT_SCRIPT=@INIT_SCRIPT@
+STRIPE_SCRIPT=@STRIPE_SCRIPT@
+CACHE_SCRIPT=@CACHE_SCRIPT@
+CACHE_DEVICE=@CACHE_DEVICE@
+CACHE_MOUNT_POINT=@CACHE_MOUNT_POINT@
+
+# runs a base64 encoded script with the given arguments
+run_encoded() {
+    script="$1"; shift
+    echo "$script" | base64 -d > /tmp/jenkins-step.sh && chmod 700 /tmp/jenkins-step.sh && /tmp/jenkins-step.sh "$@"
+}
+
+# Jenkins may be restarting, so keep trying
+fetch() {
+    until curl -sfS -o "$2" "$1"; do sleep 10; done
+}
+
+bootstrap() {
+    INSTANCE=`curl -sf http://169.254.169.254/latest/meta-data/instance-id`
+    echo "Bootstrapping $INSTANCE"
+
+    if [ -n "$STRIPE_SCRIPT" ]; then
+        run_encoded "$STRIPE_SCRIPT" "$REMOTE_FS" "$RUN_AS" || exit 1
+    fi
+    if [ -n "$CACHE_SCRIPT" ]; then
+        run_encoded "$CACHE_SCRIPT" "$CACHE_DEVICE" "$CACHE_MOUNT_POINT" "$RUN_AS" || exit 1
+    fi
+    mkdir -p "$REMOTE_FS"
+    chown "$RUN_AS" "$REMOTE_FS"
+
+    # same marker as over SSH, so that AMIs with the init script baked in don't run it again
+    MARKER=`eval echo ~$RUN_AS`/.hudson-run-init
+    if [ -n "$INIT_SCRIPT" ] && [ ! -e "$MARKER" ]; then
+        echo "Executing init script"
+        run_encoded "$INIT_SCRIPT" || { echo "init script failed"; exit 1; }
+        su -s /bin/sh "$RUN_AS" -c "touch '$MARKER'"
+    fi
+
+    if ! java -fullversion; then
+        echo "Installing Java"
+        fetch "$JDK_URL" /tmp/jdk.tgz
+        tar xz -C /usr -f /tmp/jdk.tgz && ln -s /usr/java1.6.0_12/bin/java /bin/java || exit 1
+    fi
+
+    fetch "${JENKINS_URL}jnlpJars/slave.jar" "$REMOTE_FS/slave.jar"
+    fetch "${JENKINS_URL}ec2-bootstrap/secret?instance=$INSTANCE&token=$TOKEN" /tmp/jenkins-secret
+    SECRET=`cat /tmp/jenkins-secret`
+    rm -f /tmp/jenkins-secret
+
+    # reconnect whenever the connection drops, for example when Jenkins restarts
+    while true; do
+        su -s /bin/sh "$RUN_AS" -c "cd '$REMOTE_FS' && exec java $JVMOPTS -cp slave.jar hudson.remoting.jnlp.Main -headless -url '$JENKINS_URL' '$SECRET' '$INSTANCE'"
+        sleep 10
+    done
+}
+
+bootstrap > /var/log/jenkins-slave.log 2>&1 &
@@ -0,0 +1,35 @@
+#!/bin/sh
+# Mounts the cache volume that was created from the cache snapshot at launch.
+#
+# usage: mount-cache-volume.sh <device> <mount point> <owner>
+#
+# Does nothing if the directory is already a mount point, so it's safe to run on every connection.
+set -e
+
+DEVICE="$1"
+MOUNT_POINT="$2"
+OWNER="$3"
+
+if mountpoint -q "$MOUNT_POINT" 2>/dev/null; then
+    echo "$MOUNT_POINT is already mounted"
+    exit 0
+fi
+
+# newer kernels expose sdX as xvdX, and the volume may take a moment to show up
+for i in $(seq 1 30); do
+    for dev in "$DEVICE" $(echo "$DEVICE" | sed -e 's|/dev/sd|/dev/xvd|'); do
+        if [ -b "$dev" ]; then
+            mkdir -p "$MOUNT_POINT"
+            mount -o noatime "$dev" "$MOUNT_POINT"
+            if [ -n "$OWNER" ]; then
+                chown "$OWNER" "$MOUNT_POINT"
+            fi
+            echo "Mounted the cache volume $dev at $MOUNT_POINT"
+            exit 0
+        fi
+    done
+    sleep 2
+done
+
+echo "Cache volume $DEVICE didn't show up"
+exit 1
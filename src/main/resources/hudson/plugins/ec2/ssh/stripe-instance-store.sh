@@ -0,0 +1,56 @@
+#!/bin/sh
+# Formats the instance store volumes of this EC2 instance, striping them together with RAID 0
+# when there are several, and mounts the result at the given directory.
+#
+# usage: stripe-instance-store.sh <mount point> <owner>
+#
+# Does nothing if the directory is already a mount point, so it's safe to run on every connection.
+set -e
+
+MOUNT_POINT="$1"
+OWNER="$2"
+METADATA=http://169.254.169.254/latest/meta-data/block-device-mapping
+
+if mountpoint -q "$MOUNT_POINT" 2>/dev/null; then
+    echo "$MOUNT_POINT is already mounted"
+    exit 0
+fi
+
+DEVICES=""
+for name in $(curl -s -f $METADATA/ | grep '^ephemeral'); do
+    dev=$(curl -s -f $METADATA/$name)
+    dev=/dev/${dev#/dev/}
+    # newer kernels expose sdX as xvdX
+    if [ ! -b "$dev" ]; then
+        dev=$(echo $dev | sed -e 's|/dev/sd|/dev/xvd|')
+    fi
+    if [ -b "$dev" ]; then
+        # cloud-init likes to mount the first one at /mnt
+        if grep -q "^$dev " /proc/mounts; then
+            umount "$dev"
+        fi
+        DEVICES="$DEVICES $dev"
+    fi
+done
+
+set -- $DEVICES
+if [ $# -eq 0 ]; then
+    echo "No instance store volumes found, leaving $MOUNT_POINT on the root volume"
+    exit 0
+fi
+
+if [ $# -eq 1 ]; then
+    TARGET=$1
+else
+    echo "Striping $# instance store volumes:$DEVICES"
+    TARGET=/dev/md0
+    yes | mdadm --create $TARGET --level=0 --raid-devices=$# $DEVICES
+fi
+
+mkfs.ext4 -q -F -E lazy_itable_init=1 $TARGET 2>/dev/null || mkfs.ext3 -q -F $TARGET
+mkdir -p "$MOUNT_POINT"
+mount -o noatime $TARGET "$MOUNT_POINT"
+if [ -n "$OWNER" ]; then
+    chown "$OWNER" "$MOUNT_POINT"
+fi
+echo "Mounted $TARGET at $MOUNT_POINT"
@@ -0,0 +1,99 @@
+package hudson.plugins.ec2;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class CapacityLedgerTest extends TestCase {
+    private static Map<String,Integer> quotas(int cloud, int template, int label) {
+        Map<String,Integer> r = new LinkedHashMap<String,Integer>();
+        r.put("cloud:c", cloud);
+        r.put("template:c/ami/t", template);
+        r.put("label:c/gpu", label);
+        return r;
+    }
+
+    public void testQuotas() {
+        CapacityLedger l = new CapacityLedger();
+        assertNotNull(l.reserve(quotas(10, 2, 10), 2));
+        assertNull("template quota", l.reserve(quotas(10, 2, 10), 1));
+        assertNull("label quota", l.reserve(quotas(10, 10, 2), 1));
+        assertNotNull(l.reserve(quotas(10, 10, 10), 1));
+        assertEquals(3, l.count("cloud:c"));
+    }
+
+    public void testCommitAndRelease() {
+        CapacityLedger l = new CapacityLedger();
+        CapacityLedger.Reservation r = l.reserve(quotas(5, 5, 5), 3);
+        r.commit(Arrays.asList("i-1", "i-2"));   // one of them didn't launch
+        assertEquals(2, l.count("cloud:c"));
+        r.release();                            // nothing left to release
+        assertEquals(2, l.count("cloud:c"));
+
+        l.release("i-1");
+        l.release("i-1");
+        assertEquals(1, l.count("template:c/ami/t"));
+
+        CapacityLedger.Reservation failed = l.reserve(quotas(5, 5, 5), 2);
+        failed.release();
+        assertEquals(1, l.count("cloud:c"));
+    }
+
+    public void testUntracked() {
+        CapacityLedger l = new CapacityLedger();
+        l.track("i-1", quotas(3, 3, 3));
+        l.setUntracked("cloud:c", new HashSet<String>(Arrays.asList("i-1", "i-x", "i-y")), System.currentTimeMillis());
+        assertEquals(3, l.count("cloud:c"));
+        assertNull(l.reserve(quotas(3, 3, 3), 1));
+        assertNotNull(l.reserve(quotas(4, 3, 3), 1));
+    }
+
+    public void testGoneInstancesAreReleased() {
+        CapacityLedger l = new CapacityLedger();
+        l.track("i-1", quotas(3, 3, 3));
+        l.track("i-2", quotas(3, 3, 3));
+        long later = System.currentTimeMillis()+(CapacityLedger.REFRESH_SECONDS+1)*1000L;
+
+        l.setUntracked("cloud:c", new HashSet<String>(Arrays.asList("i-2")), System.currentTimeMillis());
+        assertEquals("just tracked, EC2 may not know it yet", 2, l.count("cloud:c"));
+
+        l.setUntracked("cloud:c", new HashSet<String>(Arrays.asList("i-2")), later);
+        assertEquals(1, l.count("cloud:c"));
+        assertEquals(1, l.count("template:c/ami/t"));
+
+        l.setUntracked("cloud:other", new HashSet<String>(), later);
+        assertEquals("belongs to another cloud", 1, l.count("cloud:c"));
+    }
+
+    public void testConcurrentReservationsStayWithinCap() throws Exception {
+        final CapacityLedger l = new CapacityLedger();
+        final AtomicInteger granted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[16];
+        for (int i=0; i<threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j=0; j<10; j++)
+                        if (l.reserve(quotas(25, 100, 100), 1)!=null)
+                            granted.incrementAndGet();
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(25, granted.get());
+        assertEquals(25, l.count("cloud:c"));
+    }
+}
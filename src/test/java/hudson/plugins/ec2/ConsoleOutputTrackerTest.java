@@ -0,0 +1,41 @@
+package hudson.plugins.ec2;
+
+import hudson.plugins.ec2.ConsoleOutputTracker.Console;
+import hudson.plugins.ec2.ConsoleOutputTracker.Milestone;
+
+import junit.framework.TestCase;
+
+public class ConsoleOutputTrackerTest extends TestCase {
+    public void testDelta() {
+        assertEquals("abc\n", ConsoleOutputTracker.delta("", "abc\n"));
+        assertEquals("def\n", ConsoleOutputTracker.delta("abc\n", "abc\ndef\n"));
+        assertEquals("", ConsoleOutputTracker.delta("abc\n", "abc\n"));
+        // EC2 dropped the front of the output
+        StringBuilder previous = new StringBuilder();
+        for (int i=0; i<100; i++)
+            previous.append("line ").append(i).append('\n');
+        assertEquals("ghi\n", ConsoleOutputTracker.delta(previous.toString(), previous.substring(100)+"ghi\n"));
+        // nothing in common
+        assertEquals("xyz\n", ConsoleOutputTracker.delta("abc\n", "xyz\n"));
+    }
+
+    public void testMilestones() {
+        Console c = new Console();
+        c.update("Linux version 2.6.35.14-97.44.amzn1.x86_64\n");
+        assertTrue(c.has(Milestone.KERNEL));
+        assertFalse(c.has(Milestone.SSH_HOST_KEYS));
+
+        c.update("Linux version 2.6.35.14-97.44.amzn1.x86_64\nGenerating public/private rsa ");
+        assertFalse(c.has(Milestone.SSH_HOST_KEYS));
+        c.update("Linux version 2.6.35.14-97.44.amzn1.x86_64\nGenerating public/private rsa key pair.\n");
+        assertTrue(c.has(Milestone.SSH_HOST_KEYS));
+
+        assertEquals("Linux version 2.6.35.14-97.44.amzn1.x86_64\nGenerating public/private rsa key pair.\n", c.getText());
+    }
+
+    public void testDecode() throws Exception {
+        assertEquals("Linux version 2.6.35\n", ConsoleOutputTracker.decode("TGludXggdmVyc2lvbiAyLjYuMzUK"));
+        assertEquals("ec2: 2048 9e:07:4c /etc/ssh/ssh_host_rsa_key.pub (RSA)\n", ConsoleOutputTracker.decode("ec2: 2048 9e:07:4c /etc/ssh/ssh_host_rsa_key.pub (RSA)\n"));
+        assertEquals("", ConsoleOutputTracker.decode(null));
+    }
+}
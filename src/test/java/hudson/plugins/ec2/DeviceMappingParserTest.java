@@ -0,0 +1,47 @@
+package hudson.plugins.ec2;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+
+public class DeviceMappingParserTest extends TestCase {
+    public void testParse() {
+        List<BlockDeviceMapping> r = DeviceMappingParser.parse(" /dev/sdb=ephemeral0, /dev/sdf=:100:false:io1:1000 /dev/sda1=snap-1234 /dev/sdc=none");
+        assertEquals(4, r.size());
+
+        assertEquals("/dev/sdb", r.get(0).getDeviceName());
+        assertEquals("ephemeral0", r.get(0).getVirtualName());
+
+        EbsBlockDevice ebs = r.get(1).getEbs();
+        assertEquals(Integer.valueOf(100), ebs.getVolumeSize());
+        assertEquals(Boolean.FALSE, ebs.getDeleteOnTermination());
+        assertEquals("io1", ebs.getVolumeType());
+        assertEquals(Integer.valueOf(1000), ebs.getIops());
+
+        ebs = r.get(2).getEbs();
+        assertEquals("snap-1234", ebs.getSnapshotId());
+        assertNull(ebs.getVolumeSize());
+        assertEquals(Boolean.TRUE, ebs.getDeleteOnTermination());
+
+        assertEquals("", r.get(3).getNoDevice());
+    }
+
+    public void testEmpty() {
+        assertTrue(DeviceMappingParser.parse(null).isEmpty());
+        assertTrue(DeviceMappingParser.parse("  ").isEmpty());
+    }
+
+    public void testMalformed() {
+        for (String s : new String[] {"/dev/sdf", "/dev/sdf=:abc", "/dev/sdf=:", "/dev/sdf=:10:true:standard:100"}) {
+            try {
+                DeviceMappingParser.parse(s);
+                fail(s);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
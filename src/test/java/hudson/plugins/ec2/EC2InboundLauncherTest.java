@@ -0,0 +1,32 @@
+package hudson.plugins.ec2;
+
+import junit.framework.TestCase;
+
+public class EC2InboundLauncherTest extends TestCase {
+    public void testQuote() {
+        assertEquals("''", EC2InboundLauncher.quote(null));
+        assertEquals("'-Xmx1g'", EC2InboundLauncher.quote("-Xmx1g"));
+        assertEquals("'it'\\''s'", EC2InboundLauncher.quote("it's"));
+    }
+
+    public void testBootstrapScript() throws Exception {
+        String s = EC2InboundLauncher.bootstrapScript("http://jenkins/", "abc", null, "ec2-user", null, "", "echo hi", false, null);
+        assertTrue(s.startsWith("#!/bin/sh"));
+        assertTrue(s.contains("JENKINS_URL='http://jenkins/'"));
+        assertTrue(s.contains("TOKEN='abc'"));
+        assertTrue(s.contains("REMOTE_FS='/tmp/hudson'"));
+        assertTrue(s.contains("RUN_AS='ec2-user'"));
+        assertTrue(s.contains("INIT_SCRIPT='ZWNobyBoaQ=='"));
+        assertTrue(s.contains("STRIPE_SCRIPT=''"));
+        assertFalse(s.contains("@"+"TOKEN@"));
+    }
+
+    public void testCombine() {
+        assertEquals("script", EC2InboundLauncher.combine("script", " "));
+
+        String s = EC2InboundLauncher.combine("script", "#cloud-config\npackages: [git]");
+        assertTrue(s.startsWith("Content-Type: multipart/mixed"));
+        assertTrue(s.contains("Content-Type: text/x-shellscript; charset=\"utf-8\"\n\nscript\n"));
+        assertTrue(s.contains("Content-Type: text/cloud-config; charset=\"utf-8\"\n\n#cloud-config\npackages: [git]\n"));
+    }
+}
@@ -0,0 +1,30 @@
+package hudson.plugins.ec2;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+public class EucalyptusMetadataTest extends TestCase {
+    public void testParse() throws Exception {
+        String xml = "<Signature><Object><CloudSchema><Services type='array'>" +
+                "<Service><Name>ec2</Name><EndpointUrl>http://euca:8773/services/Eucalyptus</EndpointUrl>" +
+                "<Resources type='array'><Name>ignored</Name></Resources></Service>" +
+                "<Service><Name>s3</Name><EndpointUrl> http://euca:8773/services/Walrus </EndpointUrl></Service>" +
+                "</Services></CloudSchema></Object></Signature>";
+
+        Eucalyptus.Metadata m = Eucalyptus.Metadata.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertEquals("http://euca:8773/services/Eucalyptus", m.ec2endpoint.toString());
+        assertEquals("http://euca:8773/services/Walrus", m.s3endpoint.toString());
+        assertFalse(m.isStale());
+    }
+
+    public void testMissingService() throws Exception {
+        String xml = "<Services><Service><Name>ec2</Name><EndpointUrl>http://euca/</EndpointUrl></Service></Services>";
+        try {
+            Eucalyptus.Metadata.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package hudson.plugins.ec2;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.services.ec2.model.InstanceType;
+
+import static hudson.plugins.ec2.InstanceCapacity.Policy.*;
+
+public class InstanceCapacityTest extends TestCase {
+    public void testDefaultsMatchEcus() {
+        assertEquals(1, InstanceCapacity.getNumExecutors(InstanceType.M1Small, null, null));
+        assertEquals(4, InstanceCapacity.getNumExecutors(InstanceType.M1Large, null, null));
+        assertEquals(6, InstanceCapacity.getNumExecutors(InstanceType.M2Xlarge, ECU, ""));
+        assertEquals(20, InstanceCapacity.getNumExecutors(InstanceType.C1Xlarge, ECU, null));
+    }
+
+    public void testPolicies() {
+        assertEquals(8, InstanceCapacity.getNumExecutors("c1.xlarge", PER_VCPU, null));
+        assertEquals(4, InstanceCapacity.getNumExecutors("c1.xlarge", PER_VCPU, "0.5"));
+        assertEquals(15, InstanceCapacity.getNumExecutors("m1.xlarge", PER_GB, "1"));
+        assertEquals(1, InstanceCapacity.getNumExecutors("m1.small", PER_GB, "0.25"));
+    }
+
+    public void testUnknownType() {
+        assertEquals(1, InstanceCapacity.getNumExecutors("x9.huge", PER_VCPU, "2"));
+    }
+
+    public void testOverride() throws Exception {
+        Map<String,InstanceCapacity> table = new HashMap<String,InstanceCapacity>();
+        InstanceCapacity.load(new ByteArrayInputStream("# comment\nx9.huge, 64, 256, 200, 10-gigabit\nbroken,line\n".getBytes("UTF-8")), table);
+        assertEquals(1, table.size());
+        assertEquals(128, PER_VCPU.getNumExecutors(table.get("x9.huge"), 2));
+    }
+}
@@ -0,0 +1,59 @@
+package hudson.plugins.ec2;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class NodeJournalTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("ec2-nodes", ".journal");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testReplay() throws Exception {
+        NodeJournal j = new NodeJournal(file);
+        j.append(Collections.singletonMap("i-1", "<slave>one</slave>"), Collections.<String>emptySet());
+        j.append(Collections.singletonMap("i-2", "<slave>two\nlines</slave>"), Collections.<String>emptySet());
+        j.append(Collections.singletonMap("i-1", "<slave>uno</slave>"), Collections.<String>emptySet());
+        j.append(Collections.<String,String>emptyMap(), Collections.singleton("i-2"));
+
+        Map<String,String> nodes = new NodeJournal(file).load();
+        assertEquals(1, nodes.size());
+        assertEquals("<slave>uno</slave>", nodes.get("i-1"));
+    }
+
+    public void testTruncatedRecord() throws Exception {
+        NodeJournal j = new NodeJournal(file);
+        j.append(Collections.singletonMap("i-1", "<slave/>"), Collections.<String>emptySet());
+        FileWriter w = new FileWriter(file, true);
+        w.write("+i-2");
+        w.close();
+
+        Map<String,String> nodes = new NodeJournal(file).load();
+        assertEquals(Collections.singleton("i-1"), nodes.keySet());
+    }
+
+    public void testCompaction() throws Exception {
+        NodeJournal j = new NodeJournal(file);
+        for (int i=0; i<NodeJournal.COMPACT_SLACK+10; i++) {
+            j.append(Collections.singletonMap("i-"+i, "<slave/>"), Collections.<String>emptySet());
+            j.append(Collections.<String,String>emptyMap(), Collections.singleton("i-"+i));
+        }
+        j.append(Collections.singletonMap("i-last", "<slave/>"), Collections.<String>emptySet());
+        assertTrue(j.getRecordCount() <= NodeJournal.COMPACT_SLACK+3);
+
+        Map<String,String> nodes = new NodeJournal(file).load();
+        assertEquals(Collections.singleton("i-last"), nodes.keySet());
+    }
+}
@@ -0,0 +1,16 @@
+package hudson.plugins.ec2;
+
+import junit.framework.TestCase;
+
+public class OrphanedInstanceReaperTest extends TestCase {
+    public void testLeasesOfOthersAreLeftAlone() {
+        assertTrue("another master", OrphanedInstanceReaper.isLeaseActive("ec2@abc", "ec2@def:job#1"));
+        assertTrue("another cloud", OrphanedInstanceReaper.isLeaseActive("ec2@abc", "eucalyptus@abc:job#1"));
+        assertTrue("from before leases had owners", OrphanedInstanceReaper.isLeaseActive("ec2@abc", "job#1"));
+        assertTrue("not a build", OrphanedInstanceReaper.isLeaseActive("ec2@abc", "ec2@abc:job"));
+    }
+
+    public void testBakerLeaseEndsWithTheBake() {
+        assertFalse("left behind by a restart", OrphanedInstanceReaper.isLeaseActive("ec2@abc", "ec2@abc:"+AmiBaker.LEASE+"#1"));
+    }
+}
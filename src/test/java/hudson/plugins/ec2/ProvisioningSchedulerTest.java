@@ -0,0 +1,62 @@
+package hudson.plugins.ec2;
+
+import hudson.plugins.ec2.ProvisioningScheduler.Demand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ProvisioningSchedulerTest extends TestCase {
+    private static final long NOW = 10*60*1000L;
+
+    private static Demand demand(int wanted, long waitedSeconds, int weight, int executors) {
+        Demand d = new Demand("c", null);
+        d.wanted = wanted;
+        d.since = NOW-waitedSeconds*1000;
+        d.weight = weight;
+        d.executors = executors;
+        return d;
+    }
+
+    private static boolean allocate(int headroom, Demand... demands) {
+        return ProvisioningScheduler.allocate(new ArrayList<Demand>(Arrays.asList(demands)), headroom, NOW);
+    }
+
+    public void testEveryoneFits() {
+        Demand a = demand(2, 10, 1, 1), b = demand(3, 300, 1, 1);
+        assertFalse(allocate(Integer.MAX_VALUE, a, b));
+        assertEquals(2, a.granted);
+        assertEquals(3, b.granted);
+    }
+
+    public void testOldestFirst() {
+        Demand fresh = demand(5, 10, 1, 1), old = demand(3, 300, 1, 1);
+        assertTrue(allocate(4, fresh, old));
+        assertEquals(3, old.granted);
+        assertEquals(1, fresh.granted);
+    }
+
+    public void testWeight() {
+        Demand urgent = demand(3, 60, 10, 1), old = demand(3, 300, 1, 1);
+        assertTrue(allocate(3, old, urgent));
+        assertEquals(3, urgent.granted);
+        assertEquals(0, old.granted);
+    }
+
+    public void testExecutorsBreakTies() {
+        Demand small = demand(2, 120, 1, 1), big = demand(2, 120, 1, 4);
+        allocate(2, small, big);
+        assertEquals(2, big.granted);
+        assertEquals(0, small.granted);
+    }
+
+    public void testNoHeadroom() {
+        Demand a = demand(1, 10, 1, 1);
+        List<Demand> demands = new ArrayList<Demand>();
+        demands.add(a);
+        assertTrue(ProvisioningScheduler.allocate(demands, 0, NOW));
+        assertEquals(0, a.granted);
+    }
+}
@@ -0,0 +1,89 @@
+package hudson.plugins.ec2;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+public class RosterBroadcasterTest extends TestCase {
+    private static final String ROSTER = "ROSTER 1\ni-1 ip-10-0-0-1 ec2-1\nEND\n";
+
+    private ServerSocket server;
+    private ExecutorService pool;
+    private int negotiationTimeout;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new ServerSocket(0);
+        pool = Executors.newSingleThreadExecutor();
+        negotiationTimeout = RosterBroadcaster.NEGOTIATION_TIMEOUT;
+        RosterBroadcaster.NEGOTIATION_TIMEOUT = 500;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        RosterBroadcaster.NEGOTIATION_TIMEOUT = negotiationTimeout;
+        pool.shutdownNow();
+        server.close();
+    }
+
+    /**
+     * Listeners from before the roster existed read until the end of the stream and never answer.
+     */
+    public void testListenerReadingUntilEOF() throws Exception {
+        Future<String> received = pool.submit(new Callable<String>() {
+            public String call() throws Exception {
+                Socket s = server.accept();
+                try {
+                    InputStream in = s.getInputStream();
+                    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    int ch;
+                    while ((ch=in.read())!=-1)
+                        buf.write(ch);
+                    return buf.toString("UTF-8");
+                } finally {
+                    s.close();
+                }
+            }
+        });
+
+        RosterBroadcaster.send("localhost", server.getLocalPort(), "ip-10-0-0-1", ROSTER);
+        assertEquals("ip-10-0-0-1\n", received.get());
+    }
+
+    public void testListenerAskingForTheRoster() throws Exception {
+        Future<String> received = pool.submit(new Callable<String>() {
+            public String call() throws Exception {
+                Socket s = server.accept();
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+                    PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"), true);
+                    StringBuilder buf = new StringBuilder(in.readLine()).append('\n');
+                    out.println("ROSTER");
+                    String line;
+                    do {
+                        line = in.readLine();
+                        buf.append(line).append('\n');
+                    } while (!line.equals("END"));
+                    out.println("ACK");
+                    return buf.toString();
+                } finally {
+                    s.close();
+                }
+            }
+        });
+
+        RosterBroadcaster.send("localhost", server.getLocalPort(), "ip-10-0-0-1", ROSTER);
+        assertEquals("ip-10-0-0-1\n"+ROSTER, received.get());
+    }
+}
@@ -20,6 +20,7 @@ public class SlaveTemplateTest extends HudsonTestCase {
     protected void tearDown() throws Exception {
         super.tearDown();
         AmazonEC2Cloud.testMode = false;
+        CapacityFailureTracker.get().clear();
     }
 
     public void testConfigRoundtrip() throws Exception {
@@ -65,4 +66,17 @@ public class SlaveTemplateTest extends HudsonTestCase {
         SlaveTemplate received = ((EC2Cloud)hudson.clouds.iterator().next()).getTemplate(ami);
         assertEqualBeans(orig, received, "ami,zone,description,remoteFS,type,jvmopts,stopOnTerminate,securityGroups,subnetId,tags,usePrivateDnsName");
     }
+
+    public void testFallbackTypes() throws Exception {
+        SlaveTemplate t = new SlaveTemplate("ami1", EC2Slave.TEST_ZONE, "default", "foo", "22", InstanceType.M1Large, "c1.xlarge:16, m1.xlarge", "ttt", "foo ami", "bar", "aaa", "", null, null, "rrr", "fff", "-Xmx1g", "127.0.0.1", false, "subnet 456", null, null, null, false, null, false, null, null, false, false, false, null, null);
+
+        assertEquals("[m1.large:4, c1.xlarge:16, m1.xlarge:8]", t.getTypeCandidates().toString());
+        assertEquals(16, t.getNumExecutors("c1.xlarge"));
+        assertEquals(4, t.getNumExecutors("m1.large"));
+
+        CapacityFailureTracker.get().recordFailure("m1.large", EC2Slave.TEST_ZONE);
+        assertEquals("[c1.xlarge:16, m1.xlarge:8, m1.large:4]", t.rankTypeCandidates(EC2Slave.TEST_ZONE).toString());
+        assertEquals(16, t.getExpectedNumExecutors());
+        assertEquals("m1.large", t.rankTypeCandidates("otherZone").get(0).type);
+    }
 }
@@ -0,0 +1,54 @@
+package hudson.plugins.ec2;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DeleteTagsRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+public class TagReconcilerTest extends TestCase {
+    private static List<EC2Tag> tags(String... kv) {
+        EC2Tag[] r = new EC2Tag[kv.length/2];
+        for (int i=0; i<r.length; i++)
+            r[i] = new EC2Tag(kv[i*2], kv[i*2+1]);
+        return Arrays.asList(r);
+    }
+
+    public void testDiff() {
+        List<AmazonWebServiceRequest> plan = new TagReconciler().add("i-1",
+                tags("keep", "1", "change", "old", "drop", "x", EC2Cloud.SLAVE_TAG, "cloud", "aws:autoscaling", "y"),
+                tags("keep", "1", "change", "new", "add", "z")).plan();
+        assertEquals(2, plan.size());
+
+        DeleteTagsRequest d = (DeleteTagsRequest) plan.get(0);
+        assertEquals(Collections.singletonList("i-1"), d.getResources());
+        assertEquals(Collections.singletonList(new Tag().withKey("drop")), d.getTags());
+
+        CreateTagsRequest c = (CreateTagsRequest) plan.get(1);
+        assertEquals(2, c.getTags().size());
+        assertTrue(c.getTags().contains(new Tag("change", "new")));
+        assertTrue(c.getTags().contains(new Tag("add", "z")));
+    }
+
+    public void testNothingToDo() {
+        TagReconciler r = new TagReconciler().add("i-1", tags("a", "1"), tags("a", "1")).add("i-2", null, null);
+        assertTrue(r.isEmpty());
+        assertTrue(r.plan().isEmpty());
+    }
+
+    public void testBatchesAlikeChanges() {
+        List<AmazonWebServiceRequest> plan = new TagReconciler()
+                .add("i-1", tags("a", "1"), tags("a", "1", "team", "ci"))
+                .add("i-2", tags("b", "2"), tags("b", "2", "team", "ci"))
+                .add("i-3", tags(), tags("team", "qa"))
+                .plan();
+        assertEquals(2, plan.size());
+        assertEquals(Arrays.asList("i-1", "i-2"), ((CreateTagsRequest) plan.get(0)).getResources());
+        assertEquals(Collections.singletonList("i-3"), ((CreateTagsRequest) plan.get(1)).getResources());
+    }
+}
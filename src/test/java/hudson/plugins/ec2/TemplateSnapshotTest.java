@@ -0,0 +1,28 @@
+package hudson.plugins.ec2;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TemplateSnapshotTest extends TestCase {
+    public void testHash() {
+        assertEquals(TemplateSnapshot.hash("a", null, "b"), TemplateSnapshot.hash("a", null, "b"));
+        assertFalse(TemplateSnapshot.hash("a", null).equals(TemplateSnapshot.hash("a", "")));
+        assertFalse(TemplateSnapshot.hash("ab", "c").equals(TemplateSnapshot.hash("a", "bc")));
+    }
+
+    public void testSnapshotOutsideJenkins() {
+        TemplateSnapshot s = TemplateSnapshot.of("#!/bin/sh", "ubuntu", "sudo", "-Xmx1g", "30");
+        assertEquals("#!/bin/sh", s.initScript);
+        assertEquals(TemplateSnapshot.hash("#!/bin/sh", "ubuntu", "sudo", "-Xmx1g", "30"), s.hash);
+    }
+
+    public void testInternTags() {
+        List<EC2Tag> a = EC2Tag.intern(Arrays.asList(new EC2Tag("role", "build"), new EC2Tag("team", null)));
+        List<EC2Tag> b = EC2Tag.intern(Arrays.asList(new EC2Tag("role", "build"), new EC2Tag("team", null)));
+        assertSame(a, b);
+        assertSame(a.get(0), EC2Tag.intern(Arrays.asList(new EC2Tag("role", "build"))).get(0));
+        assertNull(EC2Tag.intern(null));
+    }
+}
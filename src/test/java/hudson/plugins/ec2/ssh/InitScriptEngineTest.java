@@ -0,0 +1,51 @@
+package hudson.plugins.ec2.ssh;
+
+import hudson.plugins.ec2.ssh.InitScriptEngine.Step;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class InitScriptEngineTest extends TestCase {
+    private static final String SCRIPT = "#!/bin/sh\nset -e\n" +
+            "### step jdk\nyum install -y java\n" +
+            "### step maven needs jdk\ninstall maven\n" +
+            "###step docker\ninstall docker\n";
+
+    public void testParse() {
+        assertTrue(InitScriptEngine.hasSteps(SCRIPT));
+        assertFalse(InitScriptEngine.hasSteps("#!/bin/sh\n# step jdk\nyum install -y java\n"));
+
+        List<Step> steps = InitScriptEngine.parse(SCRIPT);
+        assertEquals(3, steps.size());
+        assertEquals("jdk", steps.get(0).name);
+        assertEquals("#!/bin/sh\nset -e\nyum install -y java\n", steps.get(0).script);
+        assertEquals("maven", steps.get(1).name);
+        assertEquals(Arrays.asList("jdk"), steps.get(1).needs);
+        assertEquals("docker", steps.get(2).name);
+        assertTrue(steps.get(2).needs.isEmpty());
+    }
+
+    public void testHashFollowsDependencies() {
+        List<Step> before = InitScriptEngine.parse(SCRIPT);
+        List<Step> after = InitScriptEngine.parse(SCRIPT.replace("yum install -y java", "yum install -y java-1.6.0"));
+        assertFalse(before.get(0).getHash().equals(after.get(0).getHash()));
+        assertFalse(before.get(1).getHash().equals(after.get(1).getHash()));   // needs jdk
+        assertEquals(before.get(2).getHash(), after.get(2).getHash());
+    }
+
+    public void testMalformed() {
+        for (String s : new String[] {
+                "### step a needs b\n",
+                "### step a needs b\n### step b needs a\n",
+                "### step a\n### step a\n"}) {
+            try {
+                InitScriptEngine.parse(s);
+                fail(s);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package hudson.plugins.ec2.ssh;
+
+import junit.framework.TestCase;
+
+public class KnownHostsVerifierTest extends TestCase {
+    private static final String CONSOLE =
+            "cloud-init: running 'init-local'\n" +
+            "ec2: -----BEGIN SSH HOST KEY FINGERPRINTS-----\n" +
+            "ec2: 1024 4b:c1:fe:31:8e:9d:0a:f5:e1:a7:6f:2c:d3:9a:30:11 /etc/ssh/ssh_host_dsa_key.pub (DSA)\n" +
+            "ec2: 2048 9E:07:4C:55:0B:7A:62:2F:9D:E4:13:A8:54:C0:6B:27 /etc/ssh/ssh_host_rsa_key.pub (RSA)\n" +
+            "ec2: -----END SSH HOST KEY FINGERPRINTS-----\n";
+
+    public void testCheck() {
+        assertEquals(Boolean.TRUE, KnownHostsVerifier.check(CONSOLE, "4b:c1:fe:31:8e:9d:0a:f5:e1:a7:6f:2c:d3:9a:30:11"));
+        assertEquals(Boolean.TRUE, KnownHostsVerifier.check(CONSOLE, "9e:07:4c:55:0b:7a:62:2f:9d:e4:13:a8:54:c0:6b:27"));
+        assertEquals(Boolean.FALSE, KnownHostsVerifier.check(CONSOLE, "00:07:4c:55:0b:7a:62:2f:9d:e4:13:a8:54:c0:6b:27"));
+        assertNull(KnownHostsVerifier.check("Linux version 2.6.35\n", "00:07:4c:55:0b:7a:62:2f:9d:e4:13:a8:54:c0:6b:27"));
+        assertNull(KnownHostsVerifier.check(null, "00:07:4c:55:0b:7a:62:2f:9d:e4:13:a8:54:c0:6b:27"));
+    }
+}